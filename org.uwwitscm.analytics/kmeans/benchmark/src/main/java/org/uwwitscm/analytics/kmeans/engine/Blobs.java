@@ -0,0 +1,28 @@
+package org.uwwitscm.analytics.kmeans.engine;
+
+import java.util.Random;
+
+/**
+ * Synthetic benchmark input: {@code k} isotropic Gaussian blobs with unit
+ * variance around centers drawn uniformly from {@code [0, 20)^dims}.
+ */
+final class Blobs {
+
+    private Blobs() {}
+
+    static PointMatrix generate(final int n, final int dims, final int k, final long seed,
+            final PointMatrix.Precision precision) {
+        Random rand = new Random(seed);
+        double[][] centers = new double[k][dims];
+        for (double[] c : centers) for (int d = 0; d < dims; d++) c[d] = rand.nextDouble() * 20;
+        PointMatrix data = new PointMatrix(dims, precision);
+        double[] vec = new double[dims];
+        for (int i = 0; i < n; i++) {
+            double[] c = centers[rand.nextInt(k)];
+            for (int d = 0; d < dims; d++) vec[d] = c[d] + rand.nextGaussian();
+            data.add(vec);
+        }
+        data.trim();
+        return data;
+    }
+}
@@ -0,0 +1,126 @@
+package org.uwwitscm.analytics.kmeans.engine;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The per-k hot paths of a sweep: k-means++ seeding, a single Lloyd
+ * iteration, the nearest-centroid search and the WCSS pass, for any of the
+ * built-in distance metrics. Every benchmark starts from the same seeded
+ * centroids, so runs of different versions measure the same work.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class KernelBenchmarks {
+
+    /** Points timed per invocation of {@link #nearestCentroid()} and {@link #indexedNearestCentroid()}. */
+    private static final int QUERIES = 1024;
+
+    @Param({"100000", "1000000"})
+    int n;
+
+    @Param({"8", "32"})
+    int dims;
+
+    @Param({"8", "32"})
+    int k;
+
+    @Param({"EUCLIDEAN"})
+    DistanceMetric metric;
+
+    @Param({"DOUBLE", "FLOAT"})
+    PointMatrix.Precision precision;
+
+    @Param({"1"})
+    int threads;
+
+    private ExecutorService m_pool;
+    private ParallelChunks m_workers;
+    private PointMatrix m_data;
+    private KMeansClusterer m_clusterer;
+    private double[][] m_centroids;
+    private double[] m_flatCentroids;
+    private CentroidIndex m_index;
+    private int[] m_assignments;
+    private int[] m_scratch;
+    private double[] m_queries;
+
+    @Setup(Level.Trial)
+    public void setUp() throws ClusteringCanceledException {
+        m_pool = (threads > 1) ? Executors.newFixedThreadPool(threads) : null;
+        m_workers = (m_pool != null) ? new ParallelChunks(m_pool, threads) : ParallelChunks.SERIAL;
+        m_data = Blobs.generate(n, dims, k, 42, precision);
+        m_clusterer = new KMeansClusterer(m_data, m_workers, KMeansClusterer.Algorithm.LLOYD, metric.kernel());
+        m_centroids = new KMeansPlusPlusSeeder(m_data, m_workers, metric.kernel(), KMeansClusterer.DEFAULT_SEED).centers(k, Monitor.NONE);
+        m_flatCentroids = DistanceKernel.flatten(m_centroids);
+        m_index = new CentroidIndex(m_centroids, metric.kernel());
+        m_assignments = m_clusterer.assign(m_centroids, Monitor.NONE);
+        m_scratch = new int[n];
+        m_queries = new double[QUERIES * dims];
+        for (int q = 0; q < QUERIES; q++) m_data.copyRow((int) ((long) q * n / QUERIES), m_queries, q * dims);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        if (m_pool != null) m_pool.shutdownNow();
+    }
+
+    @Benchmark
+    public double[][] seeding() throws ClusteringCanceledException {
+        return new KMeansPlusPlusSeeder(m_data, m_workers, metric.kernel(), KMeansClusterer.DEFAULT_SEED).centers(k, Monitor.NONE);
+    }
+
+    @Benchmark
+    public double[][] parallelSeeding() throws ClusteringCanceledException {
+        return new KMeansParallelSeeder(m_data, m_workers, metric.kernel(), KMeansClusterer.DEFAULT_SEED, 2 * k).centers(k, Monitor.NONE);
+    }
+
+    @Benchmark
+    public double[][] lloydIteration() throws ClusteringCanceledException {
+        return m_clusterer.lloydIteration(m_centroids, m_scratch, Monitor.NONE);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(QUERIES)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public int nearestCentroid() {
+        DistanceKernel kernel = metric.kernel();
+        int sum = 0;
+        for (int q = 0; q < QUERIES; q++) sum += kernel.nearest(m_queries, q * dims, m_flatCentroids, k, dims);
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(QUERIES)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public int indexedNearestCentroid() {
+        int sum = 0;
+        for (int q = 0; q < QUERIES; q++) sum += m_index.nearest(m_queries, q * dims);
+        return sum;
+    }
+
+    @Benchmark
+    public double wcss() throws ClusteringCanceledException {
+        return m_clusterer.calculateWCSS(m_assignments, m_centroids, Monitor.NONE);
+    }
+}
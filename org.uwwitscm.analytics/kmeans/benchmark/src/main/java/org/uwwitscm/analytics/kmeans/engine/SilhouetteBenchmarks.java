@@ -0,0 +1,83 @@
+package org.uwwitscm.analytics.kmeans.engine;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Average silhouette of a converged clustering with each of the three
+ * strategies. The exact strategy is quadratic in n, hence the smaller sizes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class SilhouetteBenchmarks {
+
+    @Param({"2000", "10000"})
+    int n;
+
+    @Param({"8", "32"})
+    int dims;
+
+    @Param({"8"})
+    int k;
+
+    @Param({"EXACT", "SAMPLED", "SIMPLIFIED"})
+    SilhouetteCalculator.Method method;
+
+    @Param({"1000"})
+    int sampleSize;
+
+    @Param({"EUCLIDEAN"})
+    DistanceMetric metric;
+
+    @Param({"DOUBLE", "FLOAT"})
+    PointMatrix.Precision precision;
+
+    @Param({"1"})
+    int threads;
+
+    private ExecutorService m_pool;
+    private SilhouetteCalculator m_calculator;
+    private double[][] m_centroids;
+    private int[] m_assignments;
+
+    @Setup(Level.Trial)
+    public void setUp() throws ClusteringCanceledException {
+        m_pool = (threads > 1) ? Executors.newFixedThreadPool(threads) : null;
+        ParallelChunks workers = (m_pool != null) ? new ParallelChunks(m_pool, threads) : ParallelChunks.SERIAL;
+        PointMatrix data = Blobs.generate(n, dims, k, 42, precision);
+        KMeansClusterer.KMeansResult r = new KMeansClusterer(data, workers, KMeansClusterer.Algorithm.LLOYD, metric.kernel())
+            .runKMeansPlusPlus(k, 100, Monitor.NONE);
+        m_calculator = new SilhouetteCalculator(data, workers, metric.kernel());
+        m_centroids = r.centroids;
+        m_assignments = r.assignments;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        if (m_pool != null) m_pool.shutdownNow();
+    }
+
+    @Benchmark
+    public double averageSilhouette() throws ClusteringCanceledException {
+        return m_calculator.compute(method, sampleSize, KMeansClusterer.DEFAULT_SEED, m_assignments, m_centroids, Monitor.NONE).value;
+    }
+}
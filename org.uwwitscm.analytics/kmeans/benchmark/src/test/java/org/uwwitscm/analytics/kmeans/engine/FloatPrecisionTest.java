@@ -0,0 +1,71 @@
+package org.uwwitscm.analytics.kmeans.engine;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+/**
+ * Float storage only rounds the stored values; all arithmetic stays in
+ * double. Starting from the same centroids, the float run must therefore
+ * match the double run to about seven significant digits.
+ */
+class FloatPrecisionTest {
+
+    /** Relative tolerance on WCSS and centroid coordinates, well above float rounding (6e-8). */
+    private static final double TOLERANCE = 1e-5;
+    /** Share of rows allowed to switch cluster because they lie almost exactly between two centroids. */
+    private static final double MAX_FLIPPED = 1e-3;
+
+    private static PointMatrix s_doubles;
+    private static PointMatrix s_floats;
+
+    @BeforeAll
+    static void setUp() {
+        s_doubles = Blobs.generate(20000, 4, 8, 13, PointMatrix.Precision.DOUBLE);
+        s_floats = Blobs.generate(20000, 4, 8, 13, PointMatrix.Precision.FLOAT);
+    }
+
+    @Test
+    void valuesAreRoundedToNearestFloat() {
+        double[] d = new double[s_doubles.dims()];
+        double[] f = new double[s_floats.dims()];
+        for (int i = 0; i < s_doubles.rows(); i++) {
+            s_doubles.copyRow(i, d, 0);
+            s_floats.copyRow(i, f, 0);
+            for (int j = 0; j < d.length; j++) assertEquals((float) d[j], f[j], 0, "row " + i);
+        }
+    }
+
+    @ParameterizedTest
+    @EnumSource(value = DistanceMetric.class, names = {"EUCLIDEAN", "MANHATTAN"})
+    void clusteringMatchesDoubleStorage(final DistanceMetric metric) throws ClusteringCanceledException {
+        KMeansClusterer doubles = new KMeansClusterer(s_doubles, ParallelChunks.SERIAL, KMeansClusterer.Algorithm.LLOYD, metric.kernel());
+        KMeansClusterer floats = new KMeansClusterer(s_floats, ParallelChunks.SERIAL, KMeansClusterer.Algorithm.LLOYD, metric.kernel());
+        int n = s_doubles.rows();
+        for (int k = 2; k <= 12; k++) {
+            double[][] seeds = new KMeansPlusPlusSeeder(s_doubles, ParallelChunks.SERIAL, metric.kernel(), KMeansClusterer.DEFAULT_SEED)
+                .centers(k, Monitor.NONE);
+            KMeansClusterer.KMeansResult expected = doubles.runIncremental(seeds, null, 0, 100, Monitor.NONE);
+            KMeansClusterer.KMeansResult actual = floats.runIncremental(seeds, null, 0, 100, Monitor.NONE);
+            String where = metric + ", k=" + k;
+
+            int flipped = 0;
+            for (int i = 0; i < n; i++) if (expected.assignments[i] != actual.assignments[i]) flipped++;
+            assertTrue(flipped <= MAX_FLIPPED * n, where + ": " + flipped + " rows changed cluster");
+
+            double expectedWcss = doubles.calculateWCSS(expected.assignments, expected.centroids, Monitor.NONE);
+            double actualWcss = floats.calculateWCSS(actual.assignments, actual.centroids, Monitor.NONE);
+            assertEquals(expectedWcss, actualWcss, TOLERANCE * expectedWcss, where);
+            for (int c = 0; c < k; c++) {
+                for (int j = 0; j < s_doubles.dims(); j++) {
+                    double e = expected.centroids[c][j];
+                    assertEquals(e, actual.centroids[c][j], TOLERANCE * Math.max(1, Math.abs(e)), where + ", centroid " + c);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package org.uwwitscm.analytics.kmeans.engine;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+/**
+ * Hamerly's bounds only skip distance computations that cannot change an
+ * assignment, so from the same seeds it must reproduce Lloyd's iterations
+ * exactly.
+ */
+class HamerlyEquivalenceTest {
+
+    private static PointMatrix s_data;
+
+    @BeforeAll
+    static void setUp() {
+        s_data = Blobs.generate(20000, 4, 8, 11, PointMatrix.Precision.DOUBLE);
+    }
+
+    @ParameterizedTest
+    @EnumSource(value = DistanceMetric.class, names = {"EUCLIDEAN", "MANHATTAN"})
+    void hamerlyMatchesLloyd(final DistanceMetric metric) throws ClusteringCanceledException {
+        KMeansClusterer lloyd = new KMeansClusterer(s_data, ParallelChunks.SERIAL, KMeansClusterer.Algorithm.LLOYD, metric.kernel());
+        KMeansClusterer hamerly = new KMeansClusterer(s_data, ParallelChunks.SERIAL, KMeansClusterer.Algorithm.HAMERLY, metric.kernel());
+        for (int k = 2; k <= 12; k++) {
+            KMeansClusterer.KMeansResult expected = lloyd.runKMeansPlusPlus(k, 100, Monitor.NONE);
+            KMeansClusterer.KMeansResult actual = hamerly.runKMeansPlusPlus(k, 100, Monitor.NONE);
+            String where = metric + ", k=" + k;
+            assertEquals(expected.iterations, actual.iterations, where);
+            assertEquals(expected.converged, actual.converged, where);
+            assertArrayEquals(expected.assignments, actual.assignments, where);
+            for (int c = 0; c < k; c++) assertArrayEquals(expected.centroids[c], actual.centroids[c], where);
+            assertTrue(actual.distanceEvaluations <= expected.distanceEvaluations, where);
+        }
+    }
+}
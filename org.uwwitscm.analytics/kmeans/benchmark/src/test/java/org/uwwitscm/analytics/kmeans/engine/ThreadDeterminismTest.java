@@ -0,0 +1,81 @@
+package org.uwwitscm.analytics.kmeans.engine;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+/**
+ * The per-chunk partials are merged in chunk order, so clustering with any
+ * number of worker threads must give bit-for-bit the same result as the
+ * serial run.
+ */
+class ThreadDeterminismTest {
+
+    private static final int[] THREADS = {2, 3};
+
+    private static ExecutorService s_pool;
+    private static PointMatrix s_data;
+
+    @BeforeAll
+    static void setUp() {
+        s_pool = Executors.newFixedThreadPool(3);
+        s_data = Blobs.generate(70000, 4, 8, 7, PointMatrix.Precision.DOUBLE);
+    }
+
+    @AfterAll
+    static void tearDown() {
+        s_pool.shutdownNow();
+    }
+
+    @ParameterizedTest
+    @EnumSource(value = DistanceMetric.class, names = {"EUCLIDEAN", "MANHATTAN"})
+    void lloydIsIndependentOfThreadCount(final DistanceMetric metric) throws ClusteringCanceledException {
+        assertTrue(s_data.chunkCount() > THREADS[THREADS.length - 1], "every thread must get chunks");
+        for (int k = 2; k <= 12; k++) {
+            KMeansClusterer serial = new KMeansClusterer(s_data, ParallelChunks.SERIAL, KMeansClusterer.Algorithm.LLOYD, metric.kernel());
+            KMeansClusterer.KMeansResult expected = serial.runKMeansPlusPlus(k, 100, Monitor.NONE);
+            double expectedWcss = serial.calculateWCSS(expected.assignments, expected.centroids, Monitor.NONE);
+            for (int threads : THREADS) {
+                KMeansClusterer parallel = new KMeansClusterer(s_data, new ParallelChunks(s_pool, threads),
+                    KMeansClusterer.Algorithm.LLOYD, metric.kernel());
+                KMeansClusterer.KMeansResult actual = parallel.runKMeansPlusPlus(k, 100, Monitor.NONE);
+                String where = metric + ", k=" + k + ", " + threads + " threads";
+                assertEquals(expected.iterations, actual.iterations, where);
+                assertArrayEquals(expected.assignments, actual.assignments, where);
+                for (int c = 0; c < k; c++) assertArrayEquals(expected.centroids[c], actual.centroids[c], where);
+                assertEquals(Double.doubleToLongBits(expectedWcss),
+                    Double.doubleToLongBits(parallel.calculateWCSS(actual.assignments, actual.centroids, Monitor.NONE)), where);
+            }
+        }
+    }
+
+    @ParameterizedTest
+    @EnumSource(value = KMeansClusterer.Algorithm.class)
+    void concurrentRestartsAreIndependentOfThreadCount(final KMeansClusterer.Algorithm algorithm) throws ClusteringCanceledException {
+        for (int k = 4; k <= 8; k += 4) {
+            KMeansClusterer serial = new KMeansClusterer(s_data, ParallelChunks.SERIAL, algorithm, DistanceMetric.EUCLIDEAN.kernel());
+            serial.setRestarts(4);
+            KMeansClusterer.KMeansResult expected = serial.runKMeansPlusPlus(k, 100, Monitor.NONE);
+            for (int threads : THREADS) {
+                KMeansClusterer parallel = new KMeansClusterer(s_data, new ParallelChunks(s_pool, threads), algorithm,
+                    DistanceMetric.EUCLIDEAN.kernel());
+                parallel.setRestarts(4);
+                KMeansClusterer.KMeansResult actual = parallel.runKMeansPlusPlus(k, 100, Monitor.NONE);
+                String where = algorithm + ", k=" + k + ", " + threads + " threads";
+                assertEquals(expected.iterations, actual.iterations, where);
+                assertEquals(expected.abandoned, actual.abandoned, where);
+                assertEquals(expected.distanceEvaluations, actual.distanceEvaluations, where);
+                assertArrayEquals(expected.assignments, actual.assignments, where);
+                for (int c = 0; c < k; c++) assertArrayEquals(expected.centroids[c], actual.centroids[c], where);
+            }
+        }
+    }
+}
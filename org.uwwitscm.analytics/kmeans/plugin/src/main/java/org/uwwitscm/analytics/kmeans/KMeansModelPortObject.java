@@ -0,0 +1,83 @@
+package org.uwwitscm.analytics.kmeans;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.zip.ZipEntry;
+
+import javax.swing.JComponent;
+
+import org.knime.core.node.CanceledExecutionException;
+import org.knime.core.node.ExecutionMonitor;
+import org.knime.core.node.port.PortObject;
+import org.knime.core.node.port.PortObjectSpec;
+import org.knime.core.node.port.PortObjectZipInputStream;
+import org.knime.core.node.port.PortObjectZipOutputStream;
+import org.knime.core.node.port.PortType;
+import org.knime.core.node.port.PortTypeRegistry;
+
+/**
+ * Centroids of the chosen k, passed from the clustering node to the
+ * predictor. The centroids are written as raw doubles in a single zip entry,
+ * so even models with many clusters stay small and load quickly.
+ */
+public final class KMeansModelPortObject implements PortObject {
+
+    public static final PortType TYPE = PortTypeRegistry.getInstance().getPortType(KMeansModelPortObject.class);
+    public static final PortType TYPE_OPTIONAL = PortTypeRegistry.getInstance().getPortType(KMeansModelPortObject.class, true);
+
+    private static final String ENTRY_NAME = "centroids.bin";
+    private static final int MAGIC = 0x55574b43; // "UWKC"
+    private static final int VERSION = 1;
+
+    public static final class Serializer extends PortObjectSerializer<KMeansModelPortObject> {
+        @Override
+        public void savePortObject(final KMeansModelPortObject model, final PortObjectZipOutputStream out,
+                final ExecutionMonitor exec) throws IOException, CanceledExecutionException {
+            out.putNextEntry(new ZipEntry(ENTRY_NAME));
+            DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+            data.writeInt(MAGIC);
+            data.writeInt(VERSION);
+            data.writeInt(model.m_centroids.length);
+            data.writeInt(model.m_centroids[0].length);
+            for (double[] c : model.m_centroids) for (double v : c) data.writeDouble(v);
+            data.flush();
+            out.closeEntry();
+        }
+
+        @Override
+        public KMeansModelPortObject loadPortObject(final PortObjectZipInputStream in, final PortObjectSpec spec,
+                final ExecutionMonitor exec) throws IOException, CanceledExecutionException {
+            ZipEntry entry = in.getNextEntry();
+            if (entry == null || !ENTRY_NAME.equals(entry.getName())) throw new IOException("k-means model entry is missing.");
+            DataInputStream data = new DataInputStream(new BufferedInputStream(in));
+            if (data.readInt() != MAGIC || data.readInt() != VERSION) throw new IOException("Unknown k-means model format.");
+            double[][] centroids = new double[data.readInt()][data.readInt()];
+            for (double[] c : centroids) for (int d = 0; d < c.length; d++) c[d] = data.readDouble();
+            return new KMeansModelPortObject((KMeansModelPortObjectSpec) spec, centroids);
+        }
+    }
+
+    private final KMeansModelPortObjectSpec m_spec;
+    private final double[][] m_centroids;
+
+    KMeansModelPortObject(final KMeansModelPortObjectSpec spec, final double[][] centroids) {
+        m_spec = spec;
+        m_centroids = centroids;
+    }
+
+    double[][] getCentroids() { return m_centroids; }
+
+    @Override
+    public KMeansModelPortObjectSpec getSpec() { return m_spec; }
+
+    @Override
+    public String getSummary() {
+        return m_centroids.length + " clusters over " + m_centroids[0].length + " columns, " + m_spec.getDistance().getLabel() + " distance";
+    }
+
+    @Override
+    public JComponent[] getViews() { return new JComponent[0]; }
+}
@@ -0,0 +1,56 @@
+package org.uwwitscm.analytics.kmeans;
+
+import org.knime.core.node.InvalidSettingsException;
+import org.knime.core.node.ModelContentRO;
+import org.knime.core.node.ModelContentWO;
+import org.knime.core.node.port.AbstractSimplePortObjectSpec;
+import org.uwwitscm.analytics.kmeans.engine.DistanceMetric;
+
+/**
+ * Spec of a {@link KMeansModelPortObject}: the numeric columns the centroids
+ * were computed on, in the order of the centroid coordinates, the distance
+ * and the number of clusters.
+ */
+public final class KMeansModelPortObjectSpec extends AbstractSimplePortObjectSpec {
+
+    public static final class Serializer extends AbstractSimplePortObjectSpecSerializer<KMeansModelPortObjectSpec> {}
+
+    private static final String CFG_COLUMNS = "columns";
+    private static final String CFG_DISTANCE = "distance";
+    private static final String CFG_K = "k";
+
+    private String[] m_columns;
+    private DistanceMetric m_distance;
+    private int m_k;
+
+    /** Framework constructor, followed by {@link #load(ModelContentRO)}. */
+    public KMeansModelPortObjectSpec() {}
+
+    KMeansModelPortObjectSpec(final String[] columns, final DistanceMetric distance, final int k) {
+        m_columns = columns;
+        m_distance = distance;
+        m_k = k;
+    }
+
+    String[] getColumns() { return m_columns; }
+    DistanceMetric getDistance() { return m_distance; }
+    int getK() { return m_k; }
+
+    @Override
+    protected void save(final ModelContentWO model) {
+        model.addStringArray(CFG_COLUMNS, m_columns);
+        model.addString(CFG_DISTANCE, m_distance.name());
+        model.addInt(CFG_K, m_k);
+    }
+
+    @Override
+    protected void load(final ModelContentRO model) throws InvalidSettingsException {
+        m_columns = model.getStringArray(CFG_COLUMNS);
+        try {
+            m_distance = DistanceMetric.valueOf(model.getString(CFG_DISTANCE));
+        } catch (IllegalArgumentException e) {
+            throw new InvalidSettingsException("Unknown distance in k-means model: " + e.getMessage(), e);
+        }
+        m_k = model.getInt(CFG_K);
+    }
+}
@@ -0,0 +1,96 @@
+package org.uwwitscm.analytics.kmeans;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.knime.core.node.CanceledExecutionException;
+import org.knime.core.node.ExecutionMonitor;
+
+/**
+ * Runs the independent per-k clusterings of a sweep on a bounded pool.
+ *
+ * Jobs are submitted largest k first, since those take longest and would
+ * otherwise finish last on their own. Progress is reported as the share of
+ * the summed k values that has completed. The results come back keyed by k in
+ * ascending order, so callers can write their output deterministically
+ * regardless of the completion order.
+ */
+final class KSweepScheduler {
+
+    /** Clustering work for a single k. */
+    interface Job<R> {
+        R run(int k) throws Exception;
+    }
+
+    private static final long POLL_MILLIS = 200;
+
+    private KSweepScheduler() {}
+
+    /**
+     * @param ks the k values to evaluate
+     * @param concurrency maximum number of k values evaluated at the same time
+     */
+    static <R> SortedMap<Integer, R> run(final List<Integer> ks, final int concurrency, final ExecutionMonitor exec,
+            final Job<R> job) throws Exception {
+        List<Integer> order = new ArrayList<>(ks);
+        order.sort((a, b) -> Integer.compare(b, a));
+        double totalCost = 0;
+        for (int k : order) totalCost += k;
+        SortedMap<Integer, R> results = new TreeMap<>();
+
+        if (concurrency <= 1 || order.size() <= 1) {
+            double done = 0;
+            for (int k : order) {
+                exec.checkCanceled();
+                exec.setProgress(done / totalCost, "Clustering k=" + k);
+                results.put(k, job.run(k));
+                done += k;
+            }
+            return results;
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(concurrency, order.size()));
+        CompletionService<Integer> completion = new ExecutorCompletionService<>(pool);
+        List<Future<Integer>> futures = new ArrayList<>(order.size());
+        try {
+            for (int k : order) {
+                futures.add(completion.submit(() -> {
+                    R r = job.run(k);
+                    synchronized (results) { results.put(k, r); }
+                    return k;
+                }));
+            }
+            double done = 0;
+            StringBuilder finished = new StringBuilder();
+            for (int pending = order.size(); pending > 0;) {
+                exec.checkCanceled();
+                Future<Integer> f = completion.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                if (f == null) continue;
+                int k = f.get();
+                pending--;
+                done += k;
+                finished.append(finished.length() == 0 ? "" : ", ").append(k);
+                exec.setProgress(done / totalCost, "Clustering, finished k=" + finished);
+            }
+            return results;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CanceledExecutionException("Interrupted while waiting for the k sweep.");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) throw (Exception) e.getCause();
+            throw new IllegalStateException(e.getCause());
+        } finally {
+            for (Future<Integer> f : futures) f.cancel(true);
+            pool.shutdownNow();
+        }
+    }
+}
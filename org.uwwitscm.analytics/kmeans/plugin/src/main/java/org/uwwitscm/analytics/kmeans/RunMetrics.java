@@ -0,0 +1,35 @@
+package org.uwwitscm.analytics.kmeans;
+
+import org.uwwitscm.analytics.kmeans.engine.KMeansClusterer;
+
+/** Timings and resource use of clustering one k during the current execution. */
+final class RunMetrics {
+
+    final long seedingNanos;
+    final int iterations;
+    final long iterationNanos;
+    /** False if the run stopped at the iteration cap. */
+    final boolean converged;
+    /** Whether the run refined earlier centroids, for which stopping at the cap is expected. */
+    final boolean refinement;
+    final long distanceEvaluations;
+    /** Point matrix plus the per-k clustering state, in bytes. */
+    final long peakBytes;
+    /** Restarts stopped early because they fell behind the best one. */
+    final int abandonedRestarts;
+    /** -1 if no silhouette was computed for this k. */
+    long silhouetteNanos = -1;
+
+    RunMetrics(final KMeansClusterer.KMeansResult r, final long matrixBytes) {
+        seedingNanos = r.seedingNanos;
+        iterations = r.iterations;
+        iterationNanos = r.iterationNanos;
+        converged = r.converged;
+        refinement = r.refinement;
+        distanceEvaluations = r.distanceEvaluations;
+        peakBytes = matrixBytes + r.workingBytes;
+        abandonedRestarts = r.abandoned;
+    }
+
+    static double millis(final long nanos) { return nanos / 1e6; }
+}
@@ -0,0 +1,155 @@
+package org.uwwitscm.analytics.kmeans;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.uwwitscm.analytics.kmeans.engine.PointMatrix;
+import org.uwwitscm.analytics.kmeans.engine.SilhouetteCalculator;
+
+/**
+ * Per-k results of earlier sweeps over the same input and algorithm settings.
+ *
+ * The cache is keyed by a fingerprint of the clustered values and a string
+ * describing every setting that influences the result. As long as both match,
+ * a rerun (typically with only the chosen k changed) can take centroids, WCSS
+ * and silhouette from here and only needs to assign the rows to the cached
+ * centroids of the chosen k. The cache is written to the node internals in a
+ * compact binary form so that it survives saving the workflow.
+ *
+ * If rows have only been appended to the input since, the cache no longer
+ * matches but its centroids and cluster sizes can still serve as the starting
+ * point of an incremental run, see {@link #isPrefixOf}.
+ */
+final class SweepCache {
+
+    static final String FILE_NAME = "sweep-cache.bin";
+
+    private static final int MAGIC = 0x55574b4d; // "UWKM"
+    private static final int VERSION = 2;
+
+    /** Result of a single k. */
+    static final class Entry {
+        final double[][] centroids;
+        /** Whether assigning every row to its nearest centroid reproduces the clustering. */
+        final boolean exactAssignment;
+        double wcss = Double.NaN;
+        /** Null if the k was only run as the chosen k and not as part of the analysis range. */
+        SilhouetteCalculator.Result silhouette;
+        /** Points per cluster, or null if unknown (caches written before version 2). */
+        long[] sizes;
+        /** Assignments of the chosen k for the current execution; never persisted. */
+        int[] assignments;
+        /** Diagnostics if this entry was computed in the current execution; never persisted. */
+        RunMetrics metrics;
+
+        Entry(final double[][] centroids, final boolean exactAssignment) {
+            this.centroids = centroids;
+            this.exactAssignment = exactAssignment;
+        }
+
+        boolean hasScores() { return silhouette != null; }
+    }
+
+    private final long m_dataHash;
+    /** Number of clustered rows; -1 if unknown (caches written before version 2). */
+    private final int m_rows;
+    private final String m_settingsKey;
+    private final Map<Integer, Entry> m_entries = new TreeMap<>();
+
+    SweepCache(final long dataHash, final int rows, final String settingsKey) {
+        m_dataHash = dataHash;
+        m_rows = rows;
+        m_settingsKey = settingsKey;
+    }
+
+    boolean matches(final long dataHash, final String settingsKey) {
+        return m_dataHash == dataHash && m_settingsKey.equals(settingsKey);
+    }
+
+    /**
+     * Whether this cache was computed with the same settings on the leading
+     * rows of {@code data}, with further rows appended since.
+     */
+    boolean isPrefixOf(final PointMatrix data, final String settingsKey) {
+        return m_rows > 0 && m_rows < data.rows() && m_settingsKey.equals(settingsKey) && data.fingerprint(m_rows) == m_dataHash;
+    }
+
+    int rows() { return m_rows; }
+
+    synchronized Entry get(final int k) { return m_entries.get(k); }
+
+    synchronized void put(final int k, final Entry entry) { m_entries.put(k, entry); }
+
+    synchronized Map<Integer, Entry> entries() { return new TreeMap<>(m_entries); }
+
+    void save(final File file) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(m_dataHash);
+            out.writeInt(m_rows);
+            out.writeUTF(m_settingsKey);
+            Map<Integer, Entry> entries = entries();
+            out.writeInt(entries.size());
+            for (Map.Entry<Integer, Entry> me : entries.entrySet()) {
+                Entry e = me.getValue();
+                out.writeInt(me.getKey());
+                out.writeBoolean(e.exactAssignment);
+                out.writeInt(e.centroids.length);
+                out.writeInt(e.centroids[0].length);
+                for (double[] c : e.centroids) for (double v : c) out.writeDouble(v);
+                out.writeDouble(e.wcss);
+                out.writeBoolean(e.hasScores());
+                if (e.hasScores()) {
+                    SilhouetteCalculator.Result s = e.silhouette;
+                    out.writeDouble(s.value);
+                    out.writeByte(s.method.ordinal());
+                    out.writeInt(s.sampleSize);
+                    out.writeDouble(s.ciLower);
+                    out.writeDouble(s.ciUpper);
+                }
+                out.writeBoolean(e.sizes != null);
+                if (e.sizes != null) for (long size : e.sizes) out.writeLong(size);
+            }
+        }
+    }
+
+    /** Reads a cache written by {@link #save(File)}; returns null if the file has an unknown format. */
+    static SweepCache load(final File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC) return null;
+            int version = in.readInt();
+            if (version < 1 || version > VERSION) return null;
+            long dataHash = in.readLong();
+            SweepCache cache = new SweepCache(dataHash, (version >= 2) ? in.readInt() : -1, in.readUTF());
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                int k = in.readInt();
+                boolean exact = in.readBoolean();
+                double[][] centroids = new double[in.readInt()][in.readInt()];
+                for (double[] c : centroids) for (int d = 0; d < c.length; d++) c[d] = in.readDouble();
+                Entry e = new Entry(centroids, exact);
+                e.wcss = in.readDouble();
+                if (in.readBoolean()) {
+                    double value = in.readDouble();
+                    SilhouetteCalculator.Method method = SilhouetteCalculator.Method.values()[in.readByte()];
+                    e.silhouette = new SilhouetteCalculator.Result(value, method, in.readInt(), in.readDouble(), in.readDouble());
+                }
+                if (version >= 2 && in.readBoolean()) {
+                    e.sizes = new long[centroids.length];
+                    for (int c = 0; c < e.sizes.length; c++) e.sizes[c] = in.readLong();
+                }
+                cache.put(k, e);
+            }
+            return cache;
+        }
+    }
+}
@@ -1,8 +1,14 @@
 package org.uwwitscm.analytics.kmeans;
 
 import org.knime.core.node.defaultnodesettings.DefaultNodeSettingsPane;
+import org.knime.core.node.defaultnodesettings.DialogComponentBoolean;
 import org.knime.core.node.defaultnodesettings.DialogComponentNumber;
+import org.knime.core.node.defaultnodesettings.DialogComponentStringSelection;
 import org.knime.core.node.defaultnodesettings.SettingsModelInteger;
+import org.uwwitscm.analytics.kmeans.engine.DistanceMetric;
+import org.uwwitscm.analytics.kmeans.engine.KMeansClusterer;
+import org.uwwitscm.analytics.kmeans.engine.PointMatrix;
+import org.uwwitscm.analytics.kmeans.engine.SilhouetteCalculator;
 
 public class UWWKmeansNodeDialog extends DefaultNodeSettingsPane {
     protected UWWKmeansNodeDialog() {
@@ -10,9 +16,32 @@ public class UWWKmeansNodeDialog extends DefaultNodeSettingsPane {
         createNewGroup("Analysis Range");
         addDialogComponent(new DialogComponentNumber(new SettingsModelInteger(UWWKmeansNodeModel.CFGKEY_MIN_K, 2), "Min k:", 1));
         addDialogComponent(new DialogComponentNumber(new SettingsModelInteger(UWWKmeansNodeModel.CFGKEY_MAX_K, 10), "Max k:", 1));
+        addDialogComponent(new DialogComponentStringSelection(UWWKmeansNodeModel.createDistanceModel(), "Distance:", DistanceMetric.labels()));
         closeCurrentGroup();
         createNewGroup("Output Selection");
         addDialogComponent(new DialogComponentNumber(new SettingsModelInteger(UWWKmeansNodeModel.CFGKEY_SOLUTION_K, 3), "Chosen k:", 1));
         closeCurrentGroup();
+        createNewGroup("Silhouette");
+        addDialogComponent(new DialogComponentStringSelection(UWWKmeansNodeModel.createSilhouetteMethodModel(), "Method:", SilhouetteCalculator.Method.labels()));
+        addDialogComponent(new DialogComponentNumber(UWWKmeansNodeModel.createSilhouetteSampleModel(), "Sample size:", 1000));
+        closeCurrentGroup();
+        createNewGroup("Incremental");
+        addDialogComponent(new DialogComponentBoolean(UWWKmeansNodeModel.createIncrementalModel(), "Refine previous centroids when rows were appended"));
+        addDialogComponent(new DialogComponentNumber(UWWKmeansNodeModel.createRefinementIterationsModel(), "Refinement iterations:", 1));
+        closeCurrentGroup();
+        createNewGroup("Performance");
+        addDialogComponent(new DialogComponentStringSelection(UWWKmeansNodeModel.createAlgorithmModel(), "Algorithm:", KMeansClusterer.Algorithm.labels()));
+        addDialogComponent(new DialogComponentStringSelection(UWWKmeansNodeModel.createSeedingModel(), "Seeding:", KMeansClusterer.Seeding.labels()));
+        addDialogComponent(new DialogComponentNumber(UWWKmeansNodeModel.createSeedModel(), "Random seed:", 1));
+        addDialogComponent(new DialogComponentNumber(UWWKmeansNodeModel.createRestartsModel(), "Restarts (n_init):", 1));
+        addDialogComponent(new DialogComponentBoolean(UWWKmeansNodeModel.createWarmStartModel(), "Extend seeding from previous k (warm start)"));
+        addDialogComponent(new DialogComponentNumber(UWWKmeansNodeModel.createBatchSizeModel(), "Mini-batch size:", 256));
+        addDialogComponent(new DialogComponentNumber(UWWKmeansNodeModel.createMaxBatchesModel(), "Max. mini-batches:", 10));
+        addDialogComponent(new DialogComponentNumber(UWWKmeansNodeModel.createBatchToleranceModel(), "Mini-batch tolerance:", 1e-4));
+        addDialogComponent(new DialogComponentStringSelection(UWWKmeansNodeModel.createPrecisionModel(), "Point storage:", PointMatrix.Precision.labels()));
+        addDialogComponent(new DialogComponentNumber(UWWKmeansNodeModel.createOutOfCoreFractionModel(), "Out of core above heap fraction:", 0.05));
+        addDialogComponent(new DialogComponentNumber(UWWKmeansNodeModel.createThreadsModel(), "Threads:", 1));
+        addDialogComponent(new DialogComponentNumber(UWWKmeansNodeModel.createConcurrentKModel(), "Concurrent k values:", 1));
+        closeCurrentGroup();
     }
 }
\ No newline at end of file
@@ -1,95 +1,484 @@
 package org.uwwitscm.analytics.kmeans;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
-import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Random;
+import java.util.SortedMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
 
 import org.knime.core.data.DataCell;
 import org.knime.core.data.DataColumnSpec;
 import org.knime.core.data.DataColumnSpecCreator;
 import org.knime.core.data.DataRow;
 import org.knime.core.data.DataTableSpec;
+import org.knime.core.data.DataType;
 import org.knime.core.data.DoubleValue;
-import org.knime.core.data.RowKey;
+import org.knime.core.data.append.AppendedColumnRow;
+import org.knime.core.data.container.ColumnRearranger;
+import org.knime.core.data.container.SingleCellFactory;
+import org.knime.core.data.def.BooleanCell;
 import org.knime.core.data.def.DefaultRow;
 import org.knime.core.data.def.DoubleCell;
 import org.knime.core.data.def.IntCell;
+import org.knime.core.data.def.LongCell;
 import org.knime.core.data.def.StringCell;
 import org.knime.core.node.BufferedDataContainer;
 import org.knime.core.node.BufferedDataTable;
+import org.knime.core.node.CanceledExecutionException;
 import org.knime.core.node.ExecutionContext;
+import org.knime.core.node.ExecutionMonitor;
 import org.knime.core.node.InvalidSettingsException;
 import org.knime.core.node.NodeLogger;
 import org.knime.core.node.NodeModel;
 import org.knime.core.node.NodeSettingsRO;
 import org.knime.core.node.NodeSettingsWO;
+import org.knime.core.node.defaultnodesettings.SettingsModel;
+import org.knime.core.node.defaultnodesettings.SettingsModelBoolean;
+import org.knime.core.node.defaultnodesettings.SettingsModelDoubleBounded;
 import org.knime.core.node.defaultnodesettings.SettingsModelInteger;
+import org.knime.core.node.defaultnodesettings.SettingsModelIntegerBounded;
+import org.knime.core.node.defaultnodesettings.SettingsModelString;
+import org.knime.core.node.port.PortObject;
+import org.knime.core.node.port.PortObjectSpec;
+import org.knime.core.node.port.PortType;
+import org.knime.core.node.streamable.InputPortRole;
+import org.knime.core.node.streamable.OutputPortRole;
+import org.knime.core.node.streamable.PartitionInfo;
+import org.knime.core.node.streamable.PortInput;
+import org.knime.core.node.streamable.PortObjectInput;
+import org.knime.core.node.streamable.PortObjectOutput;
+import org.knime.core.node.streamable.PortOutput;
+import org.knime.core.node.streamable.RowOutput;
+import org.knime.core.node.streamable.StreamableOperator;
+import org.knime.core.util.FileUtil;
+import org.uwwitscm.analytics.kmeans.engine.ClusteringCanceledException;
+import org.uwwitscm.analytics.kmeans.engine.DistanceKernel;
+import org.uwwitscm.analytics.kmeans.engine.DistanceMetric;
+import org.uwwitscm.analytics.kmeans.engine.KMeansClusterer;
+import org.uwwitscm.analytics.kmeans.engine.Monitor;
+import org.uwwitscm.analytics.kmeans.engine.ParallelChunks;
+import org.uwwitscm.analytics.kmeans.engine.PointMatrix;
+import org.uwwitscm.analytics.kmeans.engine.SilhouetteCalculator;
 
 public class UWWKmeansNodeModel extends NodeModel {
 
     static final String CFGKEY_MIN_K = "min_k";
     static final String CFGKEY_MAX_K = "max_k";
     static final String CFGKEY_SOLUTION_K = "solution_k";
+    static final String CFGKEY_THREADS = "threads";
+    static final String CFGKEY_ALGORITHM = "algorithm";
+    static final String CFGKEY_CONCURRENT_K = "concurrent_k";
+    static final String CFGKEY_WARM_START = "warm_start_seeding";
+    static final String CFGKEY_SEEDING = "seeding";
+    static final String CFGKEY_SEED = "random_seed";
+    static final String CFGKEY_RESTARTS = "restarts";
+    static final String CFGKEY_INCREMENTAL = "incremental";
+    static final String CFGKEY_REFINEMENT_ITERATIONS = "refinement_iterations";
+    static final String CFGKEY_BATCH_SIZE = "batch_size";
+    static final String CFGKEY_MAX_BATCHES = "max_batches";
+    static final String CFGKEY_BATCH_TOLERANCE = "batch_tolerance";
+    static final String CFGKEY_SILHOUETTE_METHOD = "silhouette_method";
+    static final String CFGKEY_SILHOUETTE_SAMPLE = "silhouette_sample_size";
+    static final String CFGKEY_DISTANCE = "distance_metric";
+    static final String CFGKEY_PRECISION = "point_precision";
+    static final String CFGKEY_OUT_OF_CORE_FRACTION = "out_of_core_heap_fraction";
+
+    /** Iteration cap of a single Lloyd or Hamerly run. */
+    static final int MAX_ITERATIONS = 100;
+
+    static final int DEFAULT_THREADS = Runtime.getRuntime().availableProcessors();
 
     private final SettingsModelInteger m_min_k = new SettingsModelInteger(CFGKEY_MIN_K, 2);
     private final SettingsModelInteger m_max_k = new SettingsModelInteger(CFGKEY_MAX_K, 10);
     private final SettingsModelInteger m_solution_k = new SettingsModelInteger(CFGKEY_SOLUTION_K, 3);
-
-    private Map<Integer, Double> m_wcssMap = new LinkedHashMap<>();
-    private Map<Integer, Double> m_silMap = new LinkedHashMap<>();
+    private final SettingsModelIntegerBounded m_threads = createThreadsModel();
+    private final SettingsModelString m_algorithm = createAlgorithmModel();
+    private final SettingsModelIntegerBounded m_concurrentK = createConcurrentKModel();
+    private final SettingsModelBoolean m_warmStart = createWarmStartModel();
+    private final SettingsModelString m_seeding = createSeedingModel();
+    private final SettingsModelInteger m_seed = createSeedModel();
+    private final SettingsModelIntegerBounded m_restarts = createRestartsModel();
+    private final SettingsModelBoolean m_incremental = createIncrementalModel();
+    private final SettingsModelIntegerBounded m_refinementIterations = createRefinementIterationsModel();
+    private final SettingsModelIntegerBounded m_batchSize = createBatchSizeModel();
+    private final SettingsModelIntegerBounded m_maxBatches = createMaxBatchesModel();
+    private final SettingsModelDoubleBounded m_batchTolerance = createBatchToleranceModel();
+    private final SettingsModelString m_silMethod = createSilhouetteMethodModel();
+    private final SettingsModelIntegerBounded m_silSample = createSilhouetteSampleModel();
+    private final SettingsModelString m_distance = createDistanceModel();
+    private final SettingsModelString m_precision = createPrecisionModel();
+    private final SettingsModelDoubleBounded m_outOfCoreFraction = createOutOfCoreFractionModel();
+
+    /** Scores by k; filled while the sweep runs, so readers may see a partial sweep. */
+    private final Map<Integer, Double> m_wcssMap = new ConcurrentSkipListMap<>();
+    private final Map<Integer, Double> m_silMap = new ConcurrentSkipListMap<>();
+
+    private final List<ScoreListener> m_scoreListeners = new CopyOnWriteArrayList<>();
+
+    /** Kept across {@link #reset()} so that a rerun on the same input can skip the sweep. */
+    private SweepCache m_cache;
+
+    /** Spill file of an out-of-core point matrix; normally deleted after the sweep, at the latest on {@link #reset()}. */
+    private File m_spillFile;
 
     private static final NodeLogger logger = NodeLogger.getLogger(UWWKmeansNodeModel.class);
 
     protected UWWKmeansNodeModel() {
-        super(1, 4);
+        super(new PortType[]{BufferedDataTable.TYPE, KMeansModelPortObject.TYPE_OPTIONAL}, new PortType[]{BufferedDataTable.TYPE, BufferedDataTable.TYPE,
+            BufferedDataTable.TYPE, BufferedDataTable.TYPE, BufferedDataTable.TYPE, KMeansModelPortObject.TYPE});
+    }
+
+    static SettingsModelIntegerBounded createThreadsModel() {
+        return new SettingsModelIntegerBounded(CFGKEY_THREADS, DEFAULT_THREADS, 1, Integer.MAX_VALUE);
+    }
+
+    static SettingsModelIntegerBounded createConcurrentKModel() {
+        return new SettingsModelIntegerBounded(CFGKEY_CONCURRENT_K, 2, 1, Integer.MAX_VALUE);
+    }
+
+    static SettingsModelString createAlgorithmModel() {
+        return new SettingsModelString(CFGKEY_ALGORITHM, KMeansClusterer.Algorithm.LLOYD.getLabel());
+    }
+
+    static SettingsModelBoolean createWarmStartModel() {
+        return new SettingsModelBoolean(CFGKEY_WARM_START, true);
+    }
+
+    static SettingsModelString createSeedingModel() {
+        return new SettingsModelString(CFGKEY_SEEDING, KMeansClusterer.Seeding.K_MEANS_PLUS_PLUS.getLabel());
+    }
+
+    static SettingsModelInteger createSeedModel() {
+        return new SettingsModelInteger(CFGKEY_SEED, (int) KMeansClusterer.DEFAULT_SEED);
+    }
+
+    static SettingsModelIntegerBounded createRestartsModel() {
+        return new SettingsModelIntegerBounded(CFGKEY_RESTARTS, 1, 1, Integer.MAX_VALUE);
+    }
+
+    static SettingsModelBoolean createIncrementalModel() {
+        return new SettingsModelBoolean(CFGKEY_INCREMENTAL, false);
+    }
+
+    static SettingsModelIntegerBounded createRefinementIterationsModel() {
+        return new SettingsModelIntegerBounded(CFGKEY_REFINEMENT_ITERATIONS, 5, 1, MAX_ITERATIONS);
+    }
+
+    static SettingsModelIntegerBounded createBatchSizeModel() {
+        return new SettingsModelIntegerBounded(CFGKEY_BATCH_SIZE, 1024, 1, Integer.MAX_VALUE);
+    }
+
+    static SettingsModelIntegerBounded createMaxBatchesModel() {
+        return new SettingsModelIntegerBounded(CFGKEY_MAX_BATCHES, 100, 1, Integer.MAX_VALUE);
+    }
+
+    static SettingsModelDoubleBounded createBatchToleranceModel() {
+        return new SettingsModelDoubleBounded(CFGKEY_BATCH_TOLERANCE, 1e-4, 0, Double.MAX_VALUE);
+    }
+
+    static SettingsModelString createSilhouetteMethodModel() {
+        return new SettingsModelString(CFGKEY_SILHOUETTE_METHOD, SilhouetteCalculator.Method.EXACT.getLabel());
+    }
+
+    static SettingsModelIntegerBounded createSilhouetteSampleModel() {
+        return new SettingsModelIntegerBounded(CFGKEY_SILHOUETTE_SAMPLE, 5000, 10, Integer.MAX_VALUE);
+    }
+
+    static SettingsModelString createDistanceModel() {
+        return new SettingsModelString(CFGKEY_DISTANCE, DistanceMetric.EUCLIDEAN.getLabel());
+    }
+
+    static SettingsModelString createPrecisionModel() {
+        return new SettingsModelString(CFGKEY_PRECISION, PointMatrix.Precision.DOUBLE.getLabel());
+    }
+
+    static SettingsModelDoubleBounded createOutOfCoreFractionModel() {
+        return new SettingsModelDoubleBounded(CFGKEY_OUT_OF_CORE_FRACTION, 0.5, 0, 1);
+    }
+
+    private KMeansClusterer.Algorithm getAlgorithm() throws InvalidSettingsException {
+        try {
+            return KMeansClusterer.Algorithm.fromLabel(m_algorithm.getStringValue());
+        } catch (IllegalArgumentException e) {
+            throw new InvalidSettingsException(e.getMessage(), e);
+        }
+    }
+
+    private SilhouetteCalculator.Method getSilhouetteMethod() throws InvalidSettingsException {
+        try {
+            return SilhouetteCalculator.Method.fromLabel(m_silMethod.getStringValue());
+        } catch (IllegalArgumentException e) {
+            throw new InvalidSettingsException(e.getMessage(), e);
+        }
+    }
+
+    private DistanceMetric getDistanceMetric() throws InvalidSettingsException {
+        try {
+            return DistanceMetric.fromLabel(m_distance.getStringValue());
+        } catch (IllegalArgumentException e) {
+            throw new InvalidSettingsException(e.getMessage(), e);
+        }
+    }
+
+    private KMeansClusterer.Seeding getSeeding() throws InvalidSettingsException {
+        try {
+            return KMeansClusterer.Seeding.fromLabel(m_seeding.getStringValue());
+        } catch (IllegalArgumentException e) {
+            throw new InvalidSettingsException(e.getMessage(), e);
+        }
+    }
+
+    private PointMatrix.Precision getPrecision() throws InvalidSettingsException {
+        try {
+            return PointMatrix.Precision.fromLabel(m_precision.getStringValue());
+        } catch (IllegalArgumentException e) {
+            throw new InvalidSettingsException(e.getMessage(), e);
+        }
     }
 
     public Map<Integer, Double> getWCSSData() { return m_wcssMap; }
     public Map<Integer, Double> getSilhouetteData() { return m_silMap; }
 
+    /**
+     * Notified when the WCSS and silhouette of a k become available during
+     * execution, on the thread that computed them. The values can then be read
+     * from {@link #getWCSSData()} and {@link #getSilhouetteData()}.
+     */
+    interface ScoreListener {
+        void scoresComputed(int k);
+    }
+
+    void addScoreListener(final ScoreListener listener) { m_scoreListeners.add(listener); }
+    void removeScoreListener(final ScoreListener listener) { m_scoreListeners.remove(listener); }
+
+    private void publishScores(final int k, final double wcss, final double silhouette) {
+        m_wcssMap.put(k, wcss);
+        m_silMap.put(k, silhouette);
+        for (ScoreListener l : m_scoreListeners) l.scoresComputed(k);
+    }
+
     @Override
-    protected DataTableSpec[] configure(final DataTableSpec[] inSpecs) throws InvalidSettingsException {
-        if (inSpecs[0] == null) throw new InvalidSettingsException("Input table spec is missing.");
+    protected PortObjectSpec[] configure(final PortObjectSpec[] inSpecs) throws InvalidSettingsException {
+        DataTableSpec[] tableSpecs = configureTables((DataTableSpec) inSpecs[0]);
+        checkInitialModel((KMeansModelPortObjectSpec) inSpecs[1], (DataTableSpec) inSpecs[0]);
+        return new PortObjectSpec[]{tableSpecs[0], tableSpecs[1], tableSpecs[2], tableSpecs[3], tableSpecs[4], createModelSpec(tableSpecs[0])};
+    }
+
+    private DataTableSpec[] configureTables(final DataTableSpec inSpec) throws InvalidSettingsException {
+        if (inSpec == null) throw new InvalidSettingsException("Input table spec is missing.");
 
         if (m_min_k.getIntValue() < 2) throw new InvalidSettingsException("Min k must be at least 2.");
         if (m_max_k.getIntValue() <= m_min_k.getIntValue()) throw new InvalidSettingsException("Max k must be greater than Min k.");
+        getSilhouetteMethod();
+        getPrecision();
+        getSeeding();
+        if (getAlgorithm() == KMeansClusterer.Algorithm.HAMERLY && !getDistanceMetric().kernel().isMetric()) {
+            throw new InvalidSettingsException("Hamerly's algorithm cannot be used with " + getDistanceMetric().getLabel()
+                + " distance, which does not satisfy the triangle inequality.");
+        }
 
-        DataColumnSpec[] oldCols = new DataColumnSpec[inSpecs[0].getNumColumns()];
-        for (int i = 0; i < inSpecs[0].getNumColumns(); i++) oldCols[i] = inSpecs[0].getColumnSpec(i);
+        DataColumnSpec[] oldCols = new DataColumnSpec[inSpec.getNumColumns()];
+        for (int i = 0; i < inSpec.getNumColumns(); i++) oldCols[i] = inSpec.getColumnSpec(i);
         DataColumnSpec[] port0Cols = Arrays.copyOf(oldCols, oldCols.length + 1);
         port0Cols[oldCols.length] = new DataColumnSpecCreator("Cluster", StringCell.TYPE).createSpec();
         DataTableSpec spec0 = new DataTableSpec(port0Cols);
 
         DataTableSpec spec1 = new DataTableSpec(new DataColumnSpecCreator("k", IntCell.TYPE).createSpec(), new DataColumnSpecCreator("WCSS", DoubleCell.TYPE).createSpec());
-        DataTableSpec spec2 = new DataTableSpec(new DataColumnSpecCreator("k", IntCell.TYPE).createSpec(), new DataColumnSpecCreator("Avg_Silhouette", DoubleCell.TYPE).createSpec());
+        DataTableSpec spec2 = new DataTableSpec(new DataColumnSpecCreator("k", IntCell.TYPE).createSpec(), new DataColumnSpecCreator("Avg_Silhouette", DoubleCell.TYPE).createSpec(),
+            new DataColumnSpecCreator("Silhouette_Method", StringCell.TYPE).createSpec(), new DataColumnSpecCreator("Sample_Size", IntCell.TYPE).createSpec(),
+            new DataColumnSpecCreator("CI95_Lower", DoubleCell.TYPE).createSpec(), new DataColumnSpecCreator("CI95_Upper", DoubleCell.TYPE).createSpec());
 
         List<DataColumnSpec> centerCols = new ArrayList<>();
         centerCols.add(new DataColumnSpecCreator("k", IntCell.TYPE).createSpec());
         centerCols.add(new DataColumnSpecCreator("Cluster", StringCell.TYPE).createSpec());
-        for (int i=0; i<inSpecs[0].getNumColumns(); i++) {
-            if (inSpecs[0].getColumnSpec(i).getType().isCompatible(DoubleValue.class)) {
-                centerCols.add(new DataColumnSpecCreator("Center_" + inSpecs[0].getColumnSpec(i).getName(), DoubleCell.TYPE).createSpec());
+        for (int i=0; i<inSpec.getNumColumns(); i++) {
+            if (inSpec.getColumnSpec(i).getType().isCompatible(DoubleValue.class)) {
+                centerCols.add(new DataColumnSpecCreator("Center_" + inSpec.getColumnSpec(i).getName(), DoubleCell.TYPE).createSpec());
             }
         }
         DataTableSpec spec3 = new DataTableSpec(centerCols.toArray(new DataColumnSpec[0]));
 
-        return new DataTableSpec[]{spec0, spec1, spec2, spec3};
+        DataTableSpec spec4 = new DataTableSpec(new DataColumnSpecCreator("k", IntCell.TYPE).createSpec(),
+            new DataColumnSpecCreator("Cached", BooleanCell.TYPE).createSpec(), new DataColumnSpecCreator("Seeding_Time_ms", DoubleCell.TYPE).createSpec(),
+            new DataColumnSpecCreator("Iterations", IntCell.TYPE).createSpec(), new DataColumnSpecCreator("Iteration_Time_ms", DoubleCell.TYPE).createSpec(),
+            new DataColumnSpecCreator("Converged", BooleanCell.TYPE).createSpec(), new DataColumnSpecCreator("Silhouette_Time_ms", DoubleCell.TYPE).createSpec(),
+            new DataColumnSpecCreator("Distance_Evaluations", LongCell.TYPE).createSpec(), new DataColumnSpecCreator("Peak_Memory_Bytes", LongCell.TYPE).createSpec(),
+            new DataColumnSpecCreator("Abandoned_Restarts", IntCell.TYPE).createSpec());
+
+        return new DataTableSpec[]{spec0, spec1, spec2, spec3, spec4};
+    }
+
+    /** The optional initial model must cover exactly the numeric columns of the input, in the same order. */
+    private static void checkInitialModel(final KMeansModelPortObjectSpec modelSpec, final DataTableSpec inSpec)
+            throws InvalidSettingsException {
+        if (modelSpec == null) return;
+        List<String> columns = new ArrayList<>();
+        for (int i = 0; i < inSpec.getNumColumns(); i++) {
+            if (inSpec.getColumnSpec(i).getType().isCompatible(DoubleValue.class)) columns.add(inSpec.getColumnSpec(i).getName());
+        }
+        if (!columns.equals(Arrays.asList(modelSpec.getColumns()))) {
+            throw new InvalidSettingsException("The initial centroids cover the columns " + Arrays.toString(modelSpec.getColumns())
+                + " but the numeric input columns are " + columns + ".");
+        }
+    }
+
+    /** The model holds the centroids of the chosen k over the numeric columns of the input. */
+    private KMeansModelPortObjectSpec createModelSpec(final DataTableSpec inSpec) throws InvalidSettingsException {
+        List<String> columns = new ArrayList<>();
+        for (int i = 0; i < inSpec.getNumColumns(); i++) {
+            if (inSpec.getColumnSpec(i).getType().isCompatible(DoubleValue.class)) columns.add(inSpec.getColumnSpec(i).getName());
+        }
+        return new KMeansModelPortObjectSpec(columns.toArray(new String[0]), getDistanceMetric(), m_solution_k.getIntValue());
     }
 
     @Override
-    protected BufferedDataTable[] execute(final BufferedDataTable[] inData, final ExecutionContext exec) throws Exception {
+    protected PortObject[] execute(final PortObject[] inData, final ExecutionContext exec) throws Exception {
+        BufferedDataTable inputTable = (BufferedDataTable) inData[0];
+        DataTableSpec[] outSpecs = configureTables(inputTable.getDataTableSpec());
+        Analysis analysis = analyze(inputTable, (KMeansModelPortObject) inData[1], exec.createSubExecutionContext(0.9));
+
+        ColumnRearranger rearranger = new ColumnRearranger(inputTable.getDataTableSpec());
+        rearranger.append(new ClusterCellFactory(outSpecs[0].getColumnSpec(outSpecs[0].getNumColumns() - 1), analysis));
+        BufferedDataTable table0 = exec.createColumnRearrangeTable(inputTable, rearranger, exec.createSubExecutionContext(0.1));
+
+        return new PortObject[]{table0, toTable(outSpecs[1], analysis.wcssRows, exec),
+            toTable(outSpecs[2], analysis.silhouetteRows, exec), toTable(outSpecs[3], analysis.centerRows, exec),
+            toTable(outSpecs[4], analysis.diagnosticsRows, exec),
+            new KMeansModelPortObject(createModelSpec(inputTable.getDataTableSpec()), analysis.centroids)};
+    }
+
+    /**
+     * The sweep needs the whole table before the first cluster label is known,
+     * so the input is not streamed; the labelled rows are pushed to port 0 one
+     * by one while the input is read a second time.
+     */
+    @Override
+    public InputPortRole[] getInputPortRoles() {
+        return new InputPortRole[]{InputPortRole.NONDISTRIBUTED_NONSTREAMABLE, InputPortRole.NONDISTRIBUTED_NONSTREAMABLE};
+    }
+
+    @Override
+    public OutputPortRole[] getOutputPortRoles() {
+        return new OutputPortRole[]{OutputPortRole.NONDISTRIBUTED, OutputPortRole.NONDISTRIBUTED,
+            OutputPortRole.NONDISTRIBUTED, OutputPortRole.NONDISTRIBUTED, OutputPortRole.NONDISTRIBUTED, OutputPortRole.NONDISTRIBUTED};
+    }
+
+    @Override
+    public StreamableOperator createStreamableOperator(final PartitionInfo partitionInfo, final PortObjectSpec[] inSpecs)
+            throws InvalidSettingsException {
+        DataTableSpec[] outSpecs = configureTables((DataTableSpec) inSpecs[0]);
+        KMeansModelPortObjectSpec modelSpec = createModelSpec((DataTableSpec) inSpecs[0]);
+        return new StreamableOperator() {
+            @Override
+            public void runFinal(final PortInput[] inputs, final PortOutput[] outputs, final ExecutionContext exec) throws Exception {
+                BufferedDataTable inputTable = (BufferedDataTable) ((PortObjectInput) inputs[0]).getPortObject();
+                KMeansModelPortObject initial = (inputs[1] != null) ? (KMeansModelPortObject) ((PortObjectInput) inputs[1]).getPortObject() : null;
+                Analysis analysis = analyze(inputTable, initial, exec.createSubExecutionContext(0.9));
+                push(analysis.wcssRows, (RowOutput) outputs[1]);
+                push(analysis.silhouetteRows, (RowOutput) outputs[2]);
+                push(analysis.centerRows, (RowOutput) outputs[3]);
+                push(analysis.diagnosticsRows, (RowOutput) outputs[4]);
+                ((PortObjectOutput) outputs[5]).setPortObject(new KMeansModelPortObject(modelSpec, analysis.centroids));
+
+                ClusterCellFactory factory = new ClusterCellFactory(outSpecs[0].getColumnSpec(outSpecs[0].getNumColumns() - 1), analysis);
+                RowOutput out0 = (RowOutput) outputs[0];
+                long rowIndex = 0;
+                for (DataRow row : inputTable) {
+                    if (++rowIndex % 1000 == 0) exec.checkCanceled();
+                    out0.push(new AppendedColumnRow(row, factory.getCell(row)));
+                }
+                out0.close();
+            }
+        };
+    }
+
+    private static void push(final List<DataRow> rows, final RowOutput out) throws InterruptedException {
+        for (DataRow row : rows) out.push(row);
+        out.close();
+    }
+
+    private static BufferedDataTable toTable(final DataTableSpec spec, final List<DataRow> rows, final ExecutionContext exec) {
+        BufferedDataContainer container = exec.createDataContainer(spec);
+        for (DataRow row : rows) container.addRowToTable(row);
+        container.close();
+        return container.getTable();
+    }
+
+    /** Everything the sweep produced; ports 1 to 4 are small, so their rows are kept in memory. */
+    private static final class Analysis {
+        final int[] numericIndices;
+        /** Cluster of the chosen k for every row without missing values, in table order. */
+        int[] assignments;
+        /** Centroids of the chosen k. */
+        double[][] centroids;
+        final List<DataRow> wcssRows = new ArrayList<>();
+        final List<DataRow> silhouetteRows = new ArrayList<>();
+        final List<DataRow> centerRows = new ArrayList<>();
+        final List<DataRow> diagnosticsRows = new ArrayList<>();
+
+        Analysis(final int[] numericIndices) { this.numericIndices = numericIndices; }
+    }
+
+    /**
+     * Copies the clustered values of {@code row} into {@code vec}; returns
+     * false if one of them is missing, in which case the row is skipped.
+     */
+    private static boolean readValues(final DataRow row, final int[] numericIndices, final double[] vec) {
+        for (int i = 0; i < numericIndices.length; i++) {
+            DataCell cell = row.getCell(numericIndices[i]);
+            if (cell.isMissing()) return false;
+            vec[i] = ((DoubleValue)cell).getDoubleValue();
+        }
+        return true;
+    }
+
+    /**
+     * Appends the cluster label. Rows arrive in table order, so the label of
+     * the next valid row is simply the next entry of the assignment array.
+     */
+    private static final class ClusterCellFactory extends SingleCellFactory {
+        private final Analysis m_analysis;
+        private final DataCell[] m_labels;
+        private final DataCell m_skipped = new StringCell("Skipped");
+        private final double[] m_vec;
+        private int m_next;
+
+        ClusterCellFactory(final DataColumnSpec spec, final Analysis analysis) {
+            super(spec);
+            m_analysis = analysis;
+            int k = 0;
+            for (int a : analysis.assignments) k = Math.max(k, a + 1);
+            m_labels = new DataCell[k];
+            for (int c = 0; c < k; c++) m_labels[c] = new StringCell("Cluster_" + c);
+            m_vec = new double[analysis.numericIndices.length];
+        }
+
+        @Override
+        public DataCell getCell(final DataRow row) {
+            if (!readValues(row, m_analysis.numericIndices, m_vec)) return m_skipped;
+            return m_labels[m_analysis.assignments[m_next++]];
+        }
+    }
+
+    /**
+     * Runs the k sweep and collects the rows of ports 1 to 4 and the assignments and centroids of the chosen k.
+     *
+     * @param initial optional starting centroids for incremental mode, or null
+     */
+    private Analysis analyze(final BufferedDataTable inputTable, final KMeansModelPortObject initial, final ExecutionContext exec)
+            throws Exception {
         m_wcssMap.clear();
         m_silMap.clear();
         
-        BufferedDataTable inputTable = inData[0];
         DataTableSpec inSpec = inputTable.getDataTableSpec(); 
         
-        List<double[]> dataPoints = new ArrayList<>();
-        List<RowKey> validKeys = new ArrayList<>(); 
         List<Integer> numericIndices = new ArrayList<>();
         
         for(int i=0; i<inSpec.getNumColumns(); i++) {
@@ -97,200 +486,308 @@ public class UWWKmeansNodeModel extends NodeModel {
         }
         if (numericIndices.isEmpty()) throw new InvalidSettingsException("No numeric columns found in input!");
         int dims = numericIndices.size();
+        Analysis analysis = new Analysis(numericIndices.stream().mapToInt(Integer::intValue).toArray());
         
-        for (DataRow row : inputTable) {
-            double[] vec = new double[dims];
-            boolean hasMissing = false;
-            for (int i = 0; i < dims; i++) {
-                DataCell cell = row.getCell(numericIndices.get(i));
-                if (cell.isMissing()) { hasMissing = true; break; }
-                vec[i] = ((DoubleValue)cell).getDoubleValue();
-            }
-            if (!hasMissing) { dataPoints.add(vec); validKeys.add(row.getKey()); }
+        PointMatrix data = loadPoints(inputTable, analysis.numericIndices);
+        if (data.rows() == 0) {
+            data.close();
+            throw new InvalidSettingsException("Input table is empty or all rows contained missing values!");
         }
-        
-        if (dataPoints.isEmpty()) throw new InvalidSettingsException("Input table is empty or all rows contained missing values!");
-
-        DataTableSpec[] outSpecs = configure(new DataTableSpec[]{inSpec});
-        BufferedDataContainer container0 = exec.createDataContainer(outSpecs[0]); 
-        BufferedDataContainer container1 = exec.createDataContainer(outSpecs[1]); 
-        BufferedDataContainer container2 = exec.createDataContainer(outSpecs[2]); 
-        BufferedDataContainer container3 = exec.createDataContainer(outSpecs[3]); 
 
         int minK = m_min_k.getIntValue();
         int maxK = m_max_k.getIntValue();
         int solutionK = m_solution_k.getIntValue();
-        Map<RowKey, Integer> solutionAssignments = new HashMap<>();
 
         int startLoop = Math.min(minK, solutionK);
         int endLoop = Math.max(maxK, solutionK);
 
-        for (int kLoop = startLoop; kLoop <= endLoop; kLoop++) {
-            boolean isInRange = (kLoop >= minK && kLoop <= maxK);
-            boolean isSolution = (kLoop == solutionK);
-            if (!isInRange && !isSolution) continue;
-
-            exec.checkCanceled();
-            exec.setProgress((double)(kLoop - startLoop) / (endLoop - startLoop), "Clustering k=" + kLoop);
-
-            KMeansResult r = runKMeansPlusPlus(dataPoints, kLoop, 100);
-
-            if (isInRange) {
-                double wcss = 0;
-                for(int i=0; i<dataPoints.size(); i++) wcss += Math.pow(euclideanDistance(dataPoints.get(i), r.centroids.get(r.assignments[i])), 2);
-                m_wcssMap.put(kLoop, wcss);
-                container1.addRowToTable(new DefaultRow("k_"+kLoop, new IntCell(kLoop), new DoubleCell(wcss)));
-
-                double avgSil = calculateAverageSilhouette(dataPoints, r.assignments, r.centroids);
-                m_silMap.put(kLoop, avgSil);
-                container2.addRowToTable(new DefaultRow("k_"+kLoop, new IntCell(kLoop), new DoubleCell(avgSil)));
-
-                for (int c=0; c<kLoop; c++) {
-                    DataCell[] cells = new DataCell[2 + dims];
-                    cells[0] = new IntCell(kLoop);
-                    cells[1] = new StringCell("Cluster_" + c);
-                    for(int d=0; d<dims; d++) cells[2+d] = new DoubleCell(r.centroids.get(c)[d]);
-                    container3.addRowToTable(new DefaultRow("k"+kLoop+"_c"+c, cells));
-                }
+        int threads = m_threads.getIntValue();
+        ExecutorService pool = (threads > 1) ? Executors.newFixedThreadPool(threads) : null;
+        try {
+            Monitor monitor = monitor(exec);
+            ParallelChunks workers = (pool != null) ? new ParallelChunks(pool, threads) : ParallelChunks.SERIAL;
+            DistanceKernel kernel = getDistanceMetric().kernel();
+            KMeansClusterer clusterer = new KMeansClusterer(data, workers, getAlgorithm(), kernel);
+            clusterer.setWarmStart(m_warmStart.getBooleanValue());
+            clusterer.setSeeding(getSeeding(), m_seed.getIntValue(), endLoop);
+            clusterer.setRestarts(m_restarts.getIntValue());
+            clusterer.setMiniBatch(m_batchSize.getIntValue(), m_maxBatches.getIntValue(), m_batchTolerance.getDoubleValue());
+            SilhouetteCalculator silhouette = new SilhouetteCalculator(data, workers, kernel);
+            SilhouetteCalculator.Method silMethod = getSilhouetteMethod();
+            int silSample = m_silSample.getIntValue();
+
+            // incremental mode starts from the results of an input this one extends, or from the initial model
+            boolean incremental = m_incremental.getBooleanValue();
+            double[][] initialCentroids = (incremental && initial != null) ? initial.getCentroids() : null;
+
+            long dataHash = data.fingerprint();
+            String settingsKey = resultSettingsKey(inSpec, numericIndices, endLoop, initialCentroids);
+            SweepCache previous = m_cache;
+            SweepCache cache = (previous != null && previous.matches(dataHash, settingsKey)) ? previous : new SweepCache(dataHash, data.rows(), settingsKey);
+            boolean miniBatch = getAlgorithm() == KMeansClusterer.Algorithm.MINI_BATCH;
+
+            SweepCache grown = (incremental && previous != null && previous != cache && previous.isPrefixOf(data, settingsKey)) ? previous : null;
+            int refinement = m_refinementIterations.getIntValue();
+            if (grown != null) logger.info("Input grew from " + grown.rows() + " to " + data.rows() + " rows; refining the previous centroids.");
+
+            List<Integer> ks = new ArrayList<>();
+            int cached = 0;
+            for (int kLoop = startLoop; kLoop <= endLoop; kLoop++) {
+                boolean isInRange = (kLoop >= minK && kLoop <= maxK);
+                boolean isSolution = (kLoop == solutionK);
+                if (!isInRange && !isSolution) continue;
+                SweepCache.Entry hit = cache.get(kLoop);
+                if (hit == null || (isInRange && !hit.hasScores()) || (isSolution && !hit.exactAssignment)) ks.add(kLoop);
+                else cached++;
+                if (isInRange && hit != null && hit.hasScores()) publishScores(kLoop, hit.wcss, hit.silhouette.value);
             }
-            if (isSolution) {
-                for(int i=0; i<validKeys.size(); i++) solutionAssignments.put(validKeys.get(i), r.assignments[i]);
+            if (cached > 0) logger.info("Reusing cached results for " + cached + " k value(s) of an identical input.");
+
+            long sweepStart = System.nanoTime();
+            SortedMap<Integer, SweepCache.Entry> sweep = KSweepScheduler.run(ks, m_concurrentK.getIntValue(), exec, kLoop -> {
+                SweepCache.Entry earlier = (grown != null) ? grown.get(kLoop) : null;
+                double[][] start = (earlier != null) ? earlier.centroids
+                    : (initialCentroids != null && initialCentroids.length == kLoop) ? initialCentroids : null;
+                KMeansClusterer.KMeansResult r = (start == null) ? clusterer.runKMeansPlusPlus(kLoop, MAX_ITERATIONS, monitor)
+                    : clusterer.runIncremental(start, (earlier != null) ? earlier.sizes : null, (earlier != null) ? grown.rows() : 0, refinement, monitor);
+                logger.info("k=" + kLoop + ": " + r.iterations + " iterations, " + r.distanceEvaluations
+                    + " distance evaluations, " + r.distanceSkipped + " skipped"
+                    + ((r.restarts > 1) ? ", " + r.abandoned + " of " + r.restarts + " restarts abandoned" : ""));
+                if (!r.converged && !miniBatch && !r.refinement) {
+                    logger.warn("k=" + kLoop + " stopped at the cap of " + MAX_ITERATIONS + " iterations without converging.");
+                }
+                SweepCache.Entry e = new SweepCache.Entry(r.centroids, r.exactAssignment);
+                e.sizes = KMeansClusterer.clusterSizes(r.assignments, kLoop);
+                e.metrics = new RunMetrics(r, data.sizeInBytes());
+                if (kLoop >= minK && kLoop <= maxK) {
+                    e.wcss = clusterer.calculateWCSS(r.assignments, r.centroids, monitor);
+                    long silStart = System.nanoTime();
+                    e.silhouette = silhouette.compute(silMethod, silSample, m_seed.getIntValue(), r.assignments, r.centroids, monitor);
+                    e.metrics.silhouetteNanos = System.nanoTime() - silStart;
+                    publishScores(kLoop, e.wcss, e.silhouette.value);
+                }
+                if (kLoop == solutionK) e.assignments = r.assignments;
+                return e;
+            });
+            long sweepNanos = System.nanoTime() - sweepStart;
+            for (Map.Entry<Integer, SweepCache.Entry> entry : sweep.entrySet()) cache.put(entry.getKey(), entry.getValue());
+            // only now, so a cancelled or failed sweep keeps the previous cache
+            m_cache = cache;
+
+            SweepTotals totals = new SweepTotals(miniBatch);
+            for (int kLoop = startLoop; kLoop <= endLoop; kLoop++) {
+                boolean isInRange = (kLoop >= minK && kLoop <= maxK);
+                boolean isSolution = (kLoop == solutionK);
+                if (!isInRange && !isSolution) continue;
+                SweepCache.Entry e = cache.get(kLoop);
+                if (isInRange) {
+                    analysis.wcssRows.add(new DefaultRow("k_"+kLoop, new IntCell(kLoop), new DoubleCell(e.wcss)));
+
+                    SilhouetteCalculator.Result sil = e.silhouette;
+                    analysis.silhouetteRows.add(new DefaultRow("k_"+kLoop, new IntCell(kLoop), new DoubleCell(sil.value),
+                        new StringCell(sil.method.getLabel()), new IntCell(sil.sampleSize), toCell(sil.ciLower), toCell(sil.ciUpper)));
+
+                    for (int c=0; c<kLoop; c++) {
+                        DataCell[] cells = new DataCell[2 + dims];
+                        cells[0] = new IntCell(kLoop);
+                        cells[1] = new StringCell("Cluster_" + c);
+                        for(int d=0; d<dims; d++) cells[2+d] = new DoubleCell(e.centroids[c][d]);
+                        analysis.centerRows.add(new DefaultRow("k"+kLoop+"_c"+c, cells));
+                    }
+                }
+                analysis.diagnosticsRows.add(diagnosticsRow(kLoop, e.metrics));
+                totals.add(kLoop, e.metrics);
+                e.metrics = null;
+                if (isSolution) {
+                    analysis.assignments = (e.assignments != null) ? e.assignments : clusterer.assign(e.centroids, monitor);
+                    analysis.centroids = e.centroids;
+                    e.assignments = null;
+                }
             }
+            publish(totals, sweepNanos);
+        } catch (ClusteringCanceledException e) {
+            throw new CanceledExecutionException(e.getMessage());
+        } finally {
+            if (pool != null) pool.shutdownNow();
+            data.close();
         }
 
-        container1.close(); container2.close(); container3.close();
+        return analysis;
+    }
 
-        for (DataRow row : inputTable) {
-            DataCell[] cells0 = new DataCell[row.getNumCells() + 1];
-            for (int i=0; i<row.getNumCells(); i++) cells0[i] = row.getCell(i);
-            if (solutionAssignments.containsKey(row.getKey())) {
-                cells0[row.getNumCells()] = new StringCell("Cluster_" + solutionAssignments.get(row.getKey()));
-            } else {
-                cells0[row.getNumCells()] = new StringCell("Skipped");
+    /**
+     * Reads the complete rows into a point matrix. If the values would take more
+     * than the configured fraction of the maximum heap, they are spilled to a
+     * memory-mapped temporary file instead.
+     */
+    private PointMatrix loadPoints(final BufferedDataTable table, final int[] numericIndices) throws Exception {
+        int dims = numericIndices.length;
+        PointMatrix.Precision precision = getPrecision();
+        long estimate = PointMatrix.estimateBytes(table.size(), dims, precision);
+        PointMatrix data;
+        if (estimate > m_outOfCoreFraction.getDoubleValue() * Runtime.getRuntime().maxMemory()) {
+            deleteSpillFile();
+            m_spillFile = FileUtil.createTempFile("uww-kmeans-points", ".bin");
+            logger.info("Point matrix needs about " + (estimate >> 20) + " MB, storing it out of core in " + m_spillFile);
+            data = new PointMatrix(dims, precision, m_spillFile);
+        } else {
+            data = new PointMatrix(dims, precision);
+        }
+        try {
+            double[] vec = new double[dims];
+            for (DataRow row : table) {
+                if (readValues(row, numericIndices, vec)) data.add(vec);
             }
-            container0.addRowToTable(new DefaultRow(row.getKey(), cells0));
+            data.trim();
+            return data;
+        } catch (Exception | Error e) {
+            data.close();
+            throw e;
         }
-        container0.close();
-
-        return new BufferedDataTable[]{container0.getTable(), container1.getTable(), container2.getTable(), container3.getTable()};
     }
 
-    private static class KMeansResult {
-        List<double[]> centroids;
-        int[] assignments;
-        public KMeansResult(List<double[]> c, int[] a) { centroids=c; assignments=a; }
-    }
-
-    private KMeansResult runKMeansPlusPlus(List<double[]> data, int k, int maxIter) {
-        Random rand = new Random(12345); 
-        List<double[]> centroids = new ArrayList<>();
-        if (!data.isEmpty()) centroids.add(data.get(rand.nextInt(data.size())));
-
-        for (int c = 1; c < k; c++) {
-            double[] distSq = new double[data.size()];
-            double sumDistSq = 0;
-            for (int i = 0; i < data.size(); i++) {
-                double minD = Double.MAX_VALUE;
-                for (double[] center : centroids) {
-                    double d = euclideanDistance(data.get(i), center);
-                    if (d < minD) minD = d;
-                }
-                distSq[i] = minD * minD;
-                sumDistSq += distSq[i];
-            }
-            double r = rand.nextDouble() * sumDistSq;
-            double curSum = 0;
-            for (int i = 0; i < data.size(); i++) {
-                curSum += distSq[i];
-                if (curSum >= r) { centroids.add(data.get(i)); break; }
-            }
-            if (centroids.size() < c + 1 && !data.isEmpty()) centroids.add(data.get(data.size()-1));
+    private void deleteSpillFile() {
+        if (m_spillFile != null && m_spillFile.exists() && !m_spillFile.delete()) {
+            logger.debug("Could not delete the spill file " + m_spillFile + ", it is removed when KNIME exits.");
+            m_spillFile.deleteOnExit();
         }
+        m_spillFile = null;
+    }
 
-        int[] assignments = new int[data.size()];
-        boolean changed = true;
-        int iter = 0;
-        while(changed && iter < maxIter) {
-            changed = false;
-            for(int i=0; i<data.size(); i++) {
-                int best = getNearest(data.get(i), centroids);
-                if(assignments[i] != best) { assignments[i] = best; changed = true; }
-            }
-            if(changed) {
-                double[][] sums = new double[k][data.get(0).length];
-                int[] counts = new int[k];
-                for(int i=0; i<data.size(); i++) {
-                    int c = assignments[i];
-                    counts[c]++;
-                    for(int d=0; d<data.get(0).length; d++) sums[c][d] += data.get(i)[d];
-                }
-                List<double[]> nextCentroids = new ArrayList<>();
-                for(int c=0; c<k; c++) {
-                    double[] center = new double[data.get(0).length];
-                    if(counts[c] > 0) {
-                        for(int d=0; d<center.length; d++) center[d] = sums[c][d] / counts[c];
-                    } else { center = centroids.get(c); }
-                    nextCentroids.add(center);
-                }
-                centroids = nextCentroids;
-            }
-            iter++;
+    private static DataRow diagnosticsRow(final int k, final RunMetrics m) {
+        DataCell missing = DataType.getMissingCell();
+        if (m == null) return new DefaultRow("k_"+k, new IntCell(k), BooleanCell.TRUE, missing, missing, missing, missing, missing, missing, missing, missing);
+        return new DefaultRow("k_"+k, new IntCell(k), BooleanCell.FALSE, new DoubleCell(RunMetrics.millis(m.seedingNanos)),
+            new IntCell(m.iterations), new DoubleCell(RunMetrics.millis(m.iterationNanos)), m.converged ? BooleanCell.TRUE : BooleanCell.FALSE,
+            (m.silhouetteNanos < 0) ? missing : new DoubleCell(RunMetrics.millis(m.silhouetteNanos)),
+            new LongCell(m.distanceEvaluations), new LongCell(m.peakBytes), new IntCell(m.abandonedRestarts));
+    }
+
+    /** Sweep-wide sums of the per-k diagnostics. */
+    private static final class SweepTotals {
+        int computed;
+        int cached;
+        long seedingNanos, iterationNanos, silhouetteNanos, distanceEvaluations, peakBytes;
+        /** k values that stopped at the iteration cap; refinements are excluded, since stopping there is expected. */
+        final List<Integer> unconverged = new ArrayList<>();
+        /** k values whose mini-batch run used up the maximum number of batches. */
+        final List<Integer> batchCapped = new ArrayList<>();
+        private final boolean m_miniBatch;
+
+        SweepTotals(final boolean miniBatch) { m_miniBatch = miniBatch; }
+
+        void add(final int k, final RunMetrics m) {
+            if (m == null) { cached++; return; }
+            computed++;
+            seedingNanos += m.seedingNanos;
+            iterationNanos += m.iterationNanos;
+            silhouetteNanos += Math.max(0, m.silhouetteNanos);
+            distanceEvaluations += m.distanceEvaluations;
+            peakBytes = Math.max(peakBytes, m.peakBytes);
+            if (m.converged || m.refinement) return;
+            if (m_miniBatch) batchCapped.add(k);
+            else unconverged.add(k);
         }
-        return new KMeansResult(centroids, assignments);
     }
 
-    private int getNearest(double[] p, List<double[]> centroids) {
-        int best = 0; double min = Double.MAX_VALUE;
-        for(int i=0; i<centroids.size(); i++) {
-            double d = euclideanDistance(p, centroids.get(i));
-            if(d < min) { min = d; best = i; }
+    /**
+     * Publishes the sweep diagnostics as flow variables. Times are summed over
+     * the k values, so with concurrent k values they can exceed the wall-clock
+     * time of the sweep, which is published separately.
+     */
+    private void publish(final SweepTotals totals, final long sweepNanos) {
+        pushFlowVariableInt("kmeans_computed_k", totals.computed);
+        pushFlowVariableInt("kmeans_cached_k", totals.cached);
+        pushFlowVariableInt("kmeans_unconverged_k", totals.unconverged.size());
+        pushFlowVariableDouble("kmeans_sweep_time_ms", RunMetrics.millis(sweepNanos));
+        pushFlowVariableDouble("kmeans_seeding_time_ms", RunMetrics.millis(totals.seedingNanos));
+        pushFlowVariableDouble("kmeans_iteration_time_ms", RunMetrics.millis(totals.iterationNanos));
+        pushFlowVariableDouble("kmeans_silhouette_time_ms", RunMetrics.millis(totals.silhouetteNanos));
+        pushFlowVariableDouble("kmeans_distance_evaluations", totals.distanceEvaluations);
+        pushFlowVariableDouble("kmeans_peak_memory_mb", totals.peakBytes / (1024.0 * 1024.0));
+        if (!totals.unconverged.isEmpty()) {
+            String ks = totals.unconverged.stream().map(String::valueOf).collect(Collectors.joining(", "));
+            setWarningMessage("Stopped at the iteration cap without converging for k=" + ks + "; see the diagnostics port.");
+        } else if (!totals.batchCapped.isEmpty()) {
+            String ks = totals.batchCapped.stream().map(String::valueOf).collect(Collectors.joining(", "));
+            setWarningMessage("Used all " + m_maxBatches.getIntValue() + " mini-batches before the centroids settled for k=" + ks
+                + "; consider more batches or a larger tolerance.");
         }
-        return best;
-    }
-
-    private double euclideanDistance(double[] a, double[] b) {
-        double sum = 0;
-        for(int i=0; i<a.length; i++) sum += Math.pow(a[i]-b[i], 2);
-        return Math.sqrt(sum);
-    }
-
-    private double calculateAverageSilhouette(List<double[]> data, int[] assignments, List<double[]> centroids) {
-        int k = centroids.size();
-        if (k < 2) return 0.0;
-        double sumSil = 0; int count = 0;
-        for (int i = 0; i < data.size(); i++) {
-            int myCluster = assignments[i];
-            double[] clusterDists = new double[k];
-            int[] clusterCounts = new int[k];
-            for (int j = 0; j < data.size(); j++) {
-                if (i == j) continue;
-                double dist = euclideanDistance(data.get(i), data.get(j));
-                clusterDists[assignments[j]] += dist;
-                clusterCounts[assignments[j]]++;
-            }
-            if (clusterCounts[myCluster] == 0) continue; 
-            double a = clusterDists[myCluster] / clusterCounts[myCluster];
-            double minB = Double.MAX_VALUE;
-            for (int c = 0; c < k; c++) {
-                if (c == myCluster) continue;
-                if (clusterCounts[c] > 0) {
-                    double b = clusterDists[c] / clusterCounts[c];
-                    if (b < minB) minB = b;
-                }
+    }
+
+    /** Lets the engine poll the node's cancellation state. */
+    private static Monitor monitor(final ExecutionMonitor exec) {
+        return () -> {
+            try {
+                exec.checkCanceled();
+            } catch (CanceledExecutionException e) {
+                throw new ClusteringCanceledException(e.getMessage());
             }
-            if (minB == Double.MAX_VALUE) minB = 0;
-            double maxVal = Math.max(a, minB);
-            double sil = (maxVal > 0) ? (minB - a) / maxVal : 0;
-            sumSil += sil;
-            count++;
-        }
-        return (count > 0) ? sumSil / count : 0.0;
+        };
+    }
+
+    /**
+     * Describes every setting that changes the clustering or the scores, so
+     * that cached results are only reused for an identical configuration.
+     * Thread counts and warm starting do not change results and are left out.
+     * Incremental mode, its refinement cap and a hash of the initial model are
+     * part of the key, so that refined results are never returned for a cold
+     * run or for other starting centroids, and vice versa.
+     *
+     * @param sweepMaxK largest k of the sweep, which sets the k-means|| oversampling
+     * @param initialCentroids centroids of the initial model in incremental mode, or null
+     */
+    private String resultSettingsKey(final DataTableSpec inSpec, final List<Integer> numericIndices, final int sweepMaxK,
+            final double[][] initialCentroids) {
+        StringBuilder sb = new StringBuilder();
+        for (int i : numericIndices) sb.append(inSpec.getColumnSpec(i).getName()).append('\u0000');
+        sb.append(m_algorithm.getStringValue()).append('|').append(m_distance.getStringValue()).append('|')
+            .append(m_precision.getStringValue()).append('|').append(m_seeding.getStringValue()).append('|').append(m_seed.getIntValue()).append('|')
+            .append(m_restarts.getIntValue()).append('|')
+            .append(m_incremental.getBooleanValue() ? m_refinementIterations.getIntValue() : 0).append('|')
+            .append((initialCentroids != null) ? Integer.toHexString(Arrays.deepHashCode(initialCentroids)) : "-").append('|')
+            .append(KMeansClusterer.Seeding.K_MEANS_PARALLEL.getLabel().equals(m_seeding.getStringValue()) ? sweepMaxK : 0).append('|')
+            .append(m_batchSize.getIntValue()).append('|').append(m_maxBatches.getIntValue()).append('|').append(m_batchTolerance.getDoubleValue()).append('|')
+            .append(m_silMethod.getStringValue()).append('|').append(m_silSample.getIntValue());
+        return sb.toString();
     }
 
-    @Override protected void saveSettingsTo(final NodeSettingsWO settings) { m_min_k.saveSettingsTo(settings); m_max_k.saveSettingsTo(settings); m_solution_k.saveSettingsTo(settings); }
-    @Override protected void loadValidatedSettingsFrom(final NodeSettingsRO settings) throws InvalidSettingsException { m_min_k.loadSettingsFrom(settings); m_max_k.loadSettingsFrom(settings); m_solution_k.loadSettingsFrom(settings); }
-    @Override protected void validateSettings(final NodeSettingsRO settings) throws InvalidSettingsException { m_min_k.validateSettings(settings); m_max_k.validateSettings(settings); m_solution_k.validateSettings(settings); }
-    @Override protected void loadInternals(java.io.File nodeInternDir, org.knime.core.node.ExecutionMonitor exec) {}
-    @Override protected void saveInternals(java.io.File nodeInternDir, org.knime.core.node.ExecutionMonitor exec) {}
-    @Override protected void reset() { m_wcssMap.clear(); m_silMap.clear(); }
+    private static DataCell toCell(final double value) {
+        return Double.isNaN(value) ? DataType.getMissingCell() : new DoubleCell(value);
+    }
+
+    /**
+     * Settings added after the first release are optional, so that workflows
+     * saved with an older version still load; a missing key keeps the default.
+     */
+    private static void validateOptional(final SettingsModel model, final String key, final NodeSettingsRO settings)
+            throws InvalidSettingsException {
+        if (settings.containsKey(key)) model.validateSettings(settings);
+    }
+
+    private static void loadOptional(final SettingsModel model, final String key, final NodeSettingsRO settings)
+            throws InvalidSettingsException {
+        if (settings.containsKey(key)) model.loadSettingsFrom(settings);
+    }
+
+    @Override protected void saveSettingsTo(final NodeSettingsWO settings) { m_min_k.saveSettingsTo(settings); m_max_k.saveSettingsTo(settings); m_solution_k.saveSettingsTo(settings); m_threads.saveSettingsTo(settings); m_concurrentK.saveSettingsTo(settings); m_algorithm.saveSettingsTo(settings); m_warmStart.saveSettingsTo(settings); m_batchSize.saveSettingsTo(settings); m_maxBatches.saveSettingsTo(settings); m_batchTolerance.saveSettingsTo(settings); m_silMethod.saveSettingsTo(settings); m_silSample.saveSettingsTo(settings); m_distance.saveSettingsTo(settings); m_precision.saveSettingsTo(settings); m_outOfCoreFraction.saveSettingsTo(settings); m_seeding.saveSettingsTo(settings); m_seed.saveSettingsTo(settings); m_restarts.saveSettingsTo(settings); m_incremental.saveSettingsTo(settings); m_refinementIterations.saveSettingsTo(settings); }
+    @Override protected void loadValidatedSettingsFrom(final NodeSettingsRO settings) throws InvalidSettingsException { m_min_k.loadSettingsFrom(settings); m_max_k.loadSettingsFrom(settings); m_solution_k.loadSettingsFrom(settings); loadOptional(m_threads, CFGKEY_THREADS, settings); loadOptional(m_concurrentK, CFGKEY_CONCURRENT_K, settings); loadOptional(m_algorithm, CFGKEY_ALGORITHM, settings); loadOptional(m_warmStart, CFGKEY_WARM_START, settings); loadOptional(m_batchSize, CFGKEY_BATCH_SIZE, settings); loadOptional(m_maxBatches, CFGKEY_MAX_BATCHES, settings); loadOptional(m_batchTolerance, CFGKEY_BATCH_TOLERANCE, settings); loadOptional(m_silMethod, CFGKEY_SILHOUETTE_METHOD, settings); loadOptional(m_silSample, CFGKEY_SILHOUETTE_SAMPLE, settings); loadOptional(m_distance, CFGKEY_DISTANCE, settings); loadOptional(m_precision, CFGKEY_PRECISION, settings); loadOptional(m_outOfCoreFraction, CFGKEY_OUT_OF_CORE_FRACTION, settings); loadOptional(m_seeding, CFGKEY_SEEDING, settings); loadOptional(m_seed, CFGKEY_SEED, settings); loadOptional(m_restarts, CFGKEY_RESTARTS, settings); loadOptional(m_incremental, CFGKEY_INCREMENTAL, settings); loadOptional(m_refinementIterations, CFGKEY_REFINEMENT_ITERATIONS, settings); }
+    @Override protected void validateSettings(final NodeSettingsRO settings) throws InvalidSettingsException { m_min_k.validateSettings(settings); m_max_k.validateSettings(settings); m_solution_k.validateSettings(settings); validateOptional(m_threads, CFGKEY_THREADS, settings); validateOptional(m_concurrentK, CFGKEY_CONCURRENT_K, settings); validateOptional(m_algorithm, CFGKEY_ALGORITHM, settings); validateOptional(m_warmStart, CFGKEY_WARM_START, settings); validateOptional(m_batchSize, CFGKEY_BATCH_SIZE, settings); validateOptional(m_maxBatches, CFGKEY_MAX_BATCHES, settings); validateOptional(m_batchTolerance, CFGKEY_BATCH_TOLERANCE, settings); validateOptional(m_silMethod, CFGKEY_SILHOUETTE_METHOD, settings); validateOptional(m_silSample, CFGKEY_SILHOUETTE_SAMPLE, settings); validateOptional(m_distance, CFGKEY_DISTANCE, settings); validateOptional(m_precision, CFGKEY_PRECISION, settings); validateOptional(m_outOfCoreFraction, CFGKEY_OUT_OF_CORE_FRACTION, settings); validateOptional(m_seeding, CFGKEY_SEEDING, settings); validateOptional(m_seed, CFGKEY_SEED, settings); validateOptional(m_restarts, CFGKEY_RESTARTS, settings); validateOptional(m_incremental, CFGKEY_INCREMENTAL, settings); validateOptional(m_refinementIterations, CFGKEY_REFINEMENT_ITERATIONS, settings); }
+    @Override protected void loadInternals(java.io.File nodeInternDir, ExecutionMonitor exec) throws IOException {
+        File file = new File(nodeInternDir, SweepCache.FILE_NAME);
+        if (!file.isFile()) return;
+        m_cache = SweepCache.load(file);
+        if (m_cache == null) return;
+        for (Map.Entry<Integer, SweepCache.Entry> e : m_cache.entries().entrySet()) {
+            int k = e.getKey();
+            if (k < m_min_k.getIntValue() || k > m_max_k.getIntValue() || !e.getValue().hasScores()) continue;
+            m_wcssMap.put(k, e.getValue().wcss);
+            m_silMap.put(k, e.getValue().silhouette.value);
+        }
+    }
+    @Override protected void saveInternals(java.io.File nodeInternDir, ExecutionMonitor exec) throws IOException {
+        if (m_cache != null) m_cache.save(new File(nodeInternDir, SweepCache.FILE_NAME));
+    }
+    @Override protected void reset() { m_wcssMap.clear(); m_silMap.clear(); deleteSpillFile(); }
+    @Override protected void onDispose() { deleteSpillFile(); }
 }
\ No newline at end of file
@@ -4,9 +4,13 @@ import java.awt.BasicStroke;
 import java.awt.BorderLayout;
 import java.awt.Color;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.swing.JPanel;
 import javax.swing.JTabbedPane;
+import javax.swing.SwingUtilities;
 
 import org.jfree.chart.ChartFactory;
 import org.jfree.chart.ChartPanel;
@@ -20,21 +24,32 @@ import org.knime.core.node.NodeView;
 
 /**
  * Node view displaying WCSS (Elbow) and Silhouette plots using JFreeChart.
+ *
+ * The charts are created once. While the node executes, every k whose scores
+ * are computed is queued by the worker thread and appended to the series on
+ * the event dispatch thread; all k queued until then are added in one batch,
+ * so the charts repaint once per batch rather than once per point.
  */
 public class UWWKmeansNodeView extends NodeView<UWWKmeansNodeModel> {
 
     private final JTabbedPane m_tabbedPane;
-    private ChartPanel m_wcssChartPanel;
-    private ChartPanel m_silhouetteChartPanel;
+    private final ChartPanel m_wcssChartPanel;
+    private final ChartPanel m_silhouetteChartPanel;
+    private final XYSeries m_wcssSeries = new XYSeries("WCSS", true, false);
+    private final XYSeries m_silhouetteSeries = new XYSeries("Silhouette", true, false);
+
+    /** k values computed since the last batch was added to the charts. */
+    private final Queue<Integer> m_pending = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean m_flushScheduled = new AtomicBoolean();
+    private final UWWKmeansNodeModel.ScoreListener m_scoreListener = this::scoresComputed;
 
     protected UWWKmeansNodeView(final UWWKmeansNodeModel nodeModel) {
         super(nodeModel);
 
         m_tabbedPane = new JTabbedPane();
 
-        // Create initial empty charts
-        m_wcssChartPanel = new ChartPanel(createWCSSChart(null));
-        m_silhouetteChartPanel = new ChartPanel(createSilhouetteChart(null));
+        m_wcssChartPanel = new ChartPanel(createWCSSChart(m_wcssSeries));
+        m_silhouetteChartPanel = new ChartPanel(createSilhouetteChart(m_silhouetteSeries));
 
         m_tabbedPane.addTab("Elbow (WCSS)", m_wcssChartPanel);
         m_tabbedPane.addTab("Silhouette Score", m_silhouetteChartPanel);
@@ -45,22 +60,12 @@ public class UWWKmeansNodeView extends NodeView<UWWKmeansNodeModel> {
         setComponent(mainPanel);
     }
 
-    private JFreeChart createWCSSChart(final Map<Integer, Double> wcssData) {
-        XYSeriesCollection dataset = new XYSeriesCollection();
-
-        if (wcssData != null && !wcssData.isEmpty()) {
-            XYSeries series = new XYSeries("WCSS");
-            for (Map.Entry<Integer, Double> entry : wcssData.entrySet()) {
-                series.add(entry.getKey().doubleValue(), entry.getValue());
-            }
-            dataset.addSeries(series);
-        }
-
+    private JFreeChart createWCSSChart(final XYSeries series) {
         JFreeChart chart = ChartFactory.createXYLineChart(
                 "Elbow Method - WCSS",
                 "Number of Clusters (k)",
                 "Within-Cluster Sum of Squares",
-                dataset,
+                new XYSeriesCollection(series),
                 PlotOrientation.VERTICAL,
                 true,
                 true,
@@ -71,22 +76,12 @@ public class UWWKmeansNodeView extends NodeView<UWWKmeansNodeModel> {
         return chart;
     }
 
-    private JFreeChart createSilhouetteChart(final Map<Integer, Double> silhouetteData) {
-        XYSeriesCollection dataset = new XYSeriesCollection();
-
-        if (silhouetteData != null && !silhouetteData.isEmpty()) {
-            XYSeries series = new XYSeries("Silhouette");
-            for (Map.Entry<Integer, Double> entry : silhouetteData.entrySet()) {
-                series.add(entry.getKey().doubleValue(), entry.getValue());
-            }
-            dataset.addSeries(series);
-        }
-
+    private JFreeChart createSilhouetteChart(final XYSeries series) {
         JFreeChart chart = ChartFactory.createXYLineChart(
                 "Silhouette Score",
                 "Number of Clusters (k)",
                 "Average Silhouette Coefficient",
-                dataset,
+                new XYSeriesCollection(series),
                 PlotOrientation.VERTICAL,
                 true,
                 true,
@@ -118,35 +113,62 @@ public class UWWKmeansNodeView extends NodeView<UWWKmeansNodeModel> {
         renderer.setSeriesShapesVisible(0, true);
     }
 
-    @Override
-    protected void modelChanged() {
-        final UWWKmeansNodeModel model = getNodeModel();
-        if (model == null) {
-            m_wcssChartPanel.setChart(createWCSSChart(null));
-            m_silhouetteChartPanel.setChart(createSilhouetteChart(null));
-            return;
+    /** Called on a worker thread of the sweep; only schedules a flush if none is pending. */
+    private void scoresComputed(final int k) {
+        m_pending.add(k);
+        if (m_flushScheduled.compareAndSet(false, true)) SwingUtilities.invokeLater(this::flushPending);
+    }
+
+    /** Adds the queued k values to the series with a single change event per series. */
+    private void flushPending() {
+        m_flushScheduled.set(false);
+        UWWKmeansNodeModel model = getNodeModel();
+        m_wcssSeries.setNotify(false);
+        m_silhouetteSeries.setNotify(false);
+        for (Integer k; (k = m_pending.poll()) != null;) {
+            if (model == null) continue;
+            // the model may have been reset since the k was queued
+            Double wcss = model.getWCSSData().get(k);
+            Double sil = model.getSilhouetteData().get(k);
+            if (wcss != null) m_wcssSeries.addOrUpdate(k.doubleValue(), wcss.doubleValue());
+            if (sil != null) m_silhouetteSeries.addOrUpdate(k.doubleValue(), sil.doubleValue());
         }
+        m_wcssSeries.setNotify(true);
+        m_silhouetteSeries.setNotify(true);
+    }
 
-        Map<Integer, Double> wcssData = model.getWCSSData();
-        m_wcssChartPanel.setChart(createWCSSChart(wcssData));
+    /** Replaces the series content with the model's current scores. */
+    private static void fill(final XYSeries series, final Map<Integer, Double> data) {
+        series.setNotify(false);
+        series.clear();
+        if (data != null) {
+            for (Map.Entry<Integer, Double> entry : data.entrySet()) {
+                series.addOrUpdate(entry.getKey().doubleValue(), entry.getValue().doubleValue());
+            }
+        }
+        series.setNotify(true);
+    }
 
-        Map<Integer, Double> silData = model.getSilhouetteData();
-        m_silhouetteChartPanel.setChart(createSilhouetteChart(silData));
+    @Override
+    protected void modelChanged() {
+        final UWWKmeansNodeModel model = getNodeModel();
+        m_pending.clear();
+        fill(m_wcssSeries, (model != null) ? model.getWCSSData() : null);
+        fill(m_silhouetteSeries, (model != null) ? model.getSilhouetteData() : null);
     }
 
     @Override
     protected void onClose() {
-        // Dispose chart resources to prevent memory leaks
-        if (m_wcssChartPanel != null) {
-            JFreeChart chart = m_wcssChartPanel.getChart();
-        }
-        if (m_silhouetteChartPanel != null) {
-            JFreeChart chart = m_silhouetteChartPanel.getChart();
-        }
+        UWWKmeansNodeModel model = getNodeModel();
+        if (model != null) model.removeScoreListener(m_scoreListener);
+        m_pending.clear();
     }
 
     @Override
     protected void onOpen() {
-        // Nothing special required
+        // registered before the charts are filled, so no k computed in between is missed
+        UWWKmeansNodeModel model = getNodeModel();
+        if (model != null) model.addScoreListener(m_scoreListener);
+        modelChanged();
     }
 }
@@ -0,0 +1,19 @@
+package org.uwwitscm.analytics.kmeans;
+
+import org.knime.core.node.defaultnodesettings.DefaultNodeSettingsPane;
+import org.knime.core.node.defaultnodesettings.DialogComponentBoolean;
+import org.knime.core.node.defaultnodesettings.DialogComponentNumber;
+import org.knime.core.node.defaultnodesettings.DialogComponentString;
+
+public class UWWKmeansPredictorNodeDialog extends DefaultNodeSettingsPane {
+    protected UWWKmeansPredictorNodeDialog() {
+        super();
+        createNewGroup("Output");
+        addDialogComponent(new DialogComponentString(UWWKmeansPredictorNodeModel.createClusterColumnModel(), "Cluster column:"));
+        addDialogComponent(new DialogComponentBoolean(UWWKmeansPredictorNodeModel.createAppendDistanceModel(), "Append distance to cluster center"));
+        closeCurrentGroup();
+        createNewGroup("Performance");
+        addDialogComponent(new DialogComponentNumber(UWWKmeansPredictorNodeModel.createThreadsModel(), "Threads:", 1));
+        closeCurrentGroup();
+    }
+}
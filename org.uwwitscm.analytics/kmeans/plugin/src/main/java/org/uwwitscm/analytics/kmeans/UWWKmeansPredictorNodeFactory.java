@@ -0,0 +1,13 @@
+package org.uwwitscm.analytics.kmeans;
+
+import org.knime.core.node.NodeDialogPane;
+import org.knime.core.node.NodeFactory;
+import org.knime.core.node.NodeView;
+
+public class UWWKmeansPredictorNodeFactory extends NodeFactory<UWWKmeansPredictorNodeModel> {
+    @Override public UWWKmeansPredictorNodeModel createNodeModel() { return new UWWKmeansPredictorNodeModel(); }
+    @Override public int getNrNodeViews() { return 0; }
+    @Override public NodeView<UWWKmeansPredictorNodeModel> createNodeView(final int viewIndex, final UWWKmeansPredictorNodeModel nodeModel) { return null; }
+    @Override public boolean hasDialog() { return true; }
+    @Override public NodeDialogPane createNodeDialogPane() { return new UWWKmeansPredictorNodeDialog(); }
+}
@@ -0,0 +1,196 @@
+package org.uwwitscm.analytics.kmeans;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.knime.core.data.DataCell;
+import org.knime.core.data.DataColumnSpec;
+import org.knime.core.data.DataColumnSpecCreator;
+import org.knime.core.data.DataRow;
+import org.knime.core.data.DataTableSpec;
+import org.knime.core.data.DataType;
+import org.knime.core.data.DoubleValue;
+import org.knime.core.data.container.AbstractCellFactory;
+import org.knime.core.data.container.ColumnRearranger;
+import org.knime.core.data.def.DoubleCell;
+import org.knime.core.data.def.StringCell;
+import org.knime.core.node.BufferedDataTable;
+import org.knime.core.node.CanceledExecutionException;
+import org.knime.core.node.ExecutionContext;
+import org.knime.core.node.ExecutionMonitor;
+import org.knime.core.node.InvalidSettingsException;
+import org.knime.core.node.NodeModel;
+import org.knime.core.node.NodeSettingsRO;
+import org.knime.core.node.NodeSettingsWO;
+import org.knime.core.node.defaultnodesettings.SettingsModelBoolean;
+import org.knime.core.node.defaultnodesettings.SettingsModelIntegerBounded;
+import org.knime.core.node.defaultnodesettings.SettingsModelString;
+import org.knime.core.node.port.PortObject;
+import org.knime.core.node.port.PortObjectSpec;
+import org.knime.core.node.port.PortType;
+import org.knime.core.node.streamable.InputPortRole;
+import org.knime.core.node.streamable.OutputPortRole;
+import org.knime.core.node.streamable.PartitionInfo;
+import org.knime.core.node.streamable.PortInput;
+import org.knime.core.node.streamable.PortObjectInput;
+import org.knime.core.node.streamable.PortOutput;
+import org.knime.core.node.streamable.StreamableOperator;
+import org.uwwitscm.analytics.kmeans.engine.CentroidIndex;
+
+/**
+ * Assigns the rows of a table to the nearest centroid of a k-means model
+ * produced by {@link UWWKmeansNodeModel}, without clustering again.
+ *
+ * The cluster column is computed by a column rearranger whose cell factory
+ * runs on several threads, both in regular and in streaming execution. The
+ * nearest centroid is found through a {@link CentroidIndex}, which prunes
+ * most comparisons for large k.
+ */
+public class UWWKmeansPredictorNodeModel extends NodeModel {
+
+    static final String CFGKEY_CLUSTER_COLUMN = "cluster_column";
+    static final String CFGKEY_APPEND_DISTANCE = "append_distance";
+    static final String CFGKEY_THREADS = "threads";
+
+    private final SettingsModelString m_clusterColumn = createClusterColumnModel();
+    private final SettingsModelBoolean m_appendDistance = createAppendDistanceModel();
+    private final SettingsModelIntegerBounded m_threads = createThreadsModel();
+
+    protected UWWKmeansPredictorNodeModel() {
+        super(new PortType[]{KMeansModelPortObject.TYPE, BufferedDataTable.TYPE}, new PortType[]{BufferedDataTable.TYPE});
+    }
+
+    static SettingsModelString createClusterColumnModel() {
+        return new SettingsModelString(CFGKEY_CLUSTER_COLUMN, "Cluster");
+    }
+
+    static SettingsModelBoolean createAppendDistanceModel() {
+        return new SettingsModelBoolean(CFGKEY_APPEND_DISTANCE, false);
+    }
+
+    static SettingsModelIntegerBounded createThreadsModel() {
+        return new SettingsModelIntegerBounded(CFGKEY_THREADS, UWWKmeansNodeModel.DEFAULT_THREADS, 1, Integer.MAX_VALUE);
+    }
+
+    @Override
+    protected PortObjectSpec[] configure(final PortObjectSpec[] inSpecs) throws InvalidSettingsException {
+        if (inSpecs[0] == null || inSpecs[1] == null) throw new InvalidSettingsException("Model or input table spec is missing.");
+        return new PortObjectSpec[]{createRearranger((KMeansModelPortObjectSpec) inSpecs[0], (DataTableSpec) inSpecs[1], null).createSpec()};
+    }
+
+    @Override
+    protected PortObject[] execute(final PortObject[] inData, final ExecutionContext exec) throws Exception {
+        KMeansModelPortObject model = (KMeansModelPortObject) inData[0];
+        BufferedDataTable table = (BufferedDataTable) inData[1];
+        ColumnRearranger rearranger = createRearranger(model.getSpec(), table.getDataTableSpec(), model);
+        return new PortObject[]{exec.createColumnRearrangeTable(table, rearranger, exec)};
+    }
+
+    /** Rows are scored independently, so the data port streams and can be distributed. */
+    @Override
+    public InputPortRole[] getInputPortRoles() {
+        return new InputPortRole[]{InputPortRole.NONDISTRIBUTED_NONSTREAMABLE, InputPortRole.DISTRIBUTED_STREAMABLE};
+    }
+
+    @Override
+    public OutputPortRole[] getOutputPortRoles() {
+        return new OutputPortRole[]{OutputPortRole.DISTRIBUTED};
+    }
+
+    @Override
+    public StreamableOperator createStreamableOperator(final PartitionInfo partitionInfo, final PortObjectSpec[] inSpecs)
+            throws InvalidSettingsException {
+        return new StreamableOperator() {
+            @Override
+            public void runFinal(final PortInput[] inputs, final PortOutput[] outputs, final ExecutionContext exec) throws Exception {
+                KMeansModelPortObject model = (KMeansModelPortObject) ((PortObjectInput) inputs[0]).getPortObject();
+                createRearranger(model.getSpec(), (DataTableSpec) inSpecs[1], model).createStreamableFunction(1, 0).runFinal(inputs, outputs, exec);
+            }
+        };
+    }
+
+    /**
+     * Maps the model columns onto the input and appends the cluster (and
+     * distance) column; {@code model} may be null when only the spec is needed.
+     */
+    private ColumnRearranger createRearranger(final KMeansModelPortObjectSpec modelSpec, final DataTableSpec inSpec,
+            final KMeansModelPortObject model) throws InvalidSettingsException {
+        String[] columns = modelSpec.getColumns();
+        int[] indices = new int[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            indices[i] = inSpec.findColumnIndex(columns[i]);
+            if (indices[i] < 0) throw new InvalidSettingsException("Input table has no column \"" + columns[i] + "\" required by the model.");
+            if (!inSpec.getColumnSpec(indices[i]).getType().isCompatible(DoubleValue.class)) {
+                throw new InvalidSettingsException("Column \"" + columns[i] + "\" is not numeric.");
+            }
+        }
+        String clusterName = m_clusterColumn.getStringValue();
+        if (clusterName == null || clusterName.trim().isEmpty()) throw new InvalidSettingsException("Cluster column name must not be empty.");
+        String distanceName = clusterName + "_Distance";
+        for (String name : m_appendDistance.getBooleanValue() ? new String[]{clusterName, distanceName} : new String[]{clusterName}) {
+            if (inSpec.containsName(name)) throw new InvalidSettingsException("Input table already contains a column \"" + name + "\".");
+        }
+        DataColumnSpec[] newCols = m_appendDistance.getBooleanValue()
+            ? new DataColumnSpec[]{new DataColumnSpecCreator(clusterName, StringCell.TYPE).createSpec(), new DataColumnSpecCreator(distanceName, DoubleCell.TYPE).createSpec()}
+            : new DataColumnSpec[]{new DataColumnSpecCreator(clusterName, StringCell.TYPE).createSpec()};
+
+        ColumnRearranger rearranger = new ColumnRearranger(inSpec);
+        if (model == null) {
+            rearranger.append(new PredictionCellFactory(newCols, indices, null));
+        } else {
+            CentroidIndex index = new CentroidIndex(model.getCentroids(), modelSpec.getDistance().kernel());
+            PredictionCellFactory factory = new PredictionCellFactory(newCols, indices, index);
+            int threads = m_threads.getIntValue();
+            if (threads > 1) factory.setParallelProcessing(true, threads, PredictionCellFactory.QUEUE_ROWS_PER_THREAD * threads);
+            rearranger.append(factory);
+        }
+        return rearranger;
+    }
+
+    /**
+     * Computes the label of the nearest centroid and optionally the distance to
+     * it. Called concurrently from several threads, so it holds no per-row state;
+     * rows with a missing value in a model column are labelled "Skipped", as in
+     * the clustering node.
+     */
+    private static final class PredictionCellFactory extends AbstractCellFactory {
+        /** Rows in flight per worker; scoring a row is cheap, so a deep queue keeps the workers busy. */
+        static final int QUEUE_ROWS_PER_THREAD = 1000;
+
+        private final int[] m_indices;
+        private final CentroidIndex m_index;
+        private final int m_cellCount;
+        private final DataCell[] m_labels;
+        private final DataCell m_skipped = new StringCell("Skipped");
+
+        PredictionCellFactory(final DataColumnSpec[] specs, final int[] indices, final CentroidIndex index) {
+            super(specs);
+            m_indices = indices;
+            m_index = index;
+            m_cellCount = specs.length;
+            m_labels = new DataCell[(index != null) ? index.k() : 0];
+            for (int c = 0; c < m_labels.length; c++) m_labels[c] = new StringCell("Cluster_" + c);
+        }
+
+        @Override
+        public DataCell[] getCells(final DataRow row) {
+            double[] vec = new double[m_indices.length];
+            for (int i = 0; i < m_indices.length; i++) {
+                DataCell cell = row.getCell(m_indices[i]);
+                if (cell.isMissing()) {
+                    return (m_cellCount == 1) ? new DataCell[]{m_skipped} : new DataCell[]{m_skipped, DataType.getMissingCell()};
+                }
+                vec[i] = ((DoubleValue) cell).getDoubleValue();
+            }
+            int c = m_index.nearest(vec, 0);
+            return (m_cellCount == 1) ? new DataCell[]{m_labels[c]} : new DataCell[]{m_labels[c], new DoubleCell(m_index.distance(vec, 0, c))};
+        }
+    }
+
+    @Override protected void saveSettingsTo(final NodeSettingsWO settings) { m_clusterColumn.saveSettingsTo(settings); m_appendDistance.saveSettingsTo(settings); m_threads.saveSettingsTo(settings); }
+    @Override protected void loadValidatedSettingsFrom(final NodeSettingsRO settings) throws InvalidSettingsException { m_clusterColumn.loadSettingsFrom(settings); m_appendDistance.loadSettingsFrom(settings); m_threads.loadSettingsFrom(settings); }
+    @Override protected void validateSettings(final NodeSettingsRO settings) throws InvalidSettingsException { m_clusterColumn.validateSettings(settings); m_appendDistance.validateSettings(settings); m_threads.validateSettings(settings); }
+    @Override protected void loadInternals(final File nodeInternDir, final ExecutionMonitor exec) throws IOException, CanceledExecutionException {}
+    @Override protected void saveInternals(final File nodeInternDir, final ExecutionMonitor exec) throws IOException, CanceledExecutionException {}
+    @Override protected void reset() {}
+}
@@ -0,0 +1,132 @@
+package org.uwwitscm.analytics.kmeans.engine;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Nearest-centroid search for scoring many points against fixed centroids.
+ *
+ * With a metric distance and enough centroids the search is pruned with the
+ * triangle inequality in the style of Phillips' "sort-means": a few pivot
+ * centroids, spread out by farthest-first selection, keep all other
+ * centroids sorted by their distance to the pivot. A point is first compared
+ * with the pivots; the nearest pivot {@code p} at distance {@code r} then
+ * lists the candidates in order, and the walk stops as soon as
+ * {@code d(p, c) - r} exceeds the best distance found so far, since no later
+ * centroid can be closer. The result is the centroid a full scan with
+ * {@link DistanceKernel#nearest} returns. Instances are immutable and can be
+ * shared between threads.
+ */
+public final class CentroidIndex {
+
+    /** Below this many centroids a plain scan is as fast as the pruned search. */
+    static final int MIN_PRUNED_K = 16;
+
+    /** Relative slack on the stopping test so that rounding cannot prune the true nearest centroid. */
+    private static final double BOUND_SLACK = 1e-10;
+
+    private final DistanceKernel m_kernel;
+    private final double[] m_centroids;
+    private final int m_k;
+    private final int m_dims;
+
+    /** Pivot centroids, or null if every point is compared with all centroids. */
+    private final int[] m_pivots;
+    private final boolean[] m_isPivot;
+    /** Per pivot, the other centroids by increasing distance, and those distances. */
+    private final int[][] m_order;
+    private final double[][] m_orderDist;
+
+    public CentroidIndex(final double[][] centroids, final DistanceKernel kernel) {
+        m_kernel = kernel;
+        m_centroids = DistanceKernel.flatten(centroids);
+        m_k = centroids.length;
+        m_dims = centroids[0].length;
+        if (!kernel.isMetric() || m_k < MIN_PRUNED_K) {
+            m_pivots = null;
+            m_isPivot = null;
+            m_order = null;
+            m_orderDist = null;
+            return;
+        }
+        m_pivots = farthestFirst((int) Math.ceil(Math.sqrt(m_k)));
+        m_isPivot = new boolean[m_k];
+        m_order = new int[m_pivots.length][];
+        m_orderDist = new double[m_pivots.length][];
+        for (int p = 0; p < m_pivots.length; p++) {
+            int pivot = m_pivots[p];
+            m_isPivot[pivot] = true;
+            double[] dist = new double[m_k];
+            for (int c = 0; c < m_k; c++) dist[c] = centroidDistance(pivot, c);
+            Integer[] others = new Integer[m_k - 1];
+            for (int c = 0, i = 0; c < m_k; c++) if (c != pivot) others[i++] = c;
+            Arrays.sort(others, Comparator.comparingDouble((Integer c) -> dist[c]).thenComparingInt(c -> c));
+            m_order[p] = new int[others.length];
+            m_orderDist[p] = new double[others.length];
+            for (int i = 0; i < others.length; i++) {
+                m_order[p][i] = others[i];
+                m_orderDist[p][i] = dist[others[i]];
+            }
+        }
+    }
+
+    public int k() { return m_k; }
+    public int dims() { return m_dims; }
+
+    /** Whether searches are pruned; false for a non-metric distance or few centroids. */
+    public boolean isPruned() { return m_pivots != null; }
+
+    /** Index of the centroid nearest to the point at {@code a[aOff]}; ties go to the lower index. */
+    public int nearest(final double[] a, final int aOff) {
+        if (m_pivots == null) return m_kernel.nearest(a, aOff, m_centroids, m_k, m_dims);
+        int best = -1;
+        int bestPivot = 0;
+        double minRank = Double.MAX_VALUE;
+        for (int p = 0; p < m_pivots.length; p++) {
+            int c = m_pivots[p];
+            double r = m_kernel.rank(a, aOff, m_centroids, c * m_dims, m_dims);
+            if (r < minRank || (r == minRank && c < best)) { minRank = r; best = c; bestPivot = p; }
+        }
+        double radius = m_kernel.toDistance(minRank);
+        double bound = radius * (1 + BOUND_SLACK);
+        int[] order = m_order[bestPivot];
+        double[] orderDist = m_orderDist[bestPivot];
+        for (int i = 0; i < order.length; i++) {
+            // d(a, c) >= d(pivot, c) - d(a, pivot), and the list is sorted by d(pivot, c)
+            if (orderDist[i] - radius > bound) break;
+            int c = order[i];
+            if (m_isPivot[c]) continue;
+            double r = m_kernel.rank(a, aOff, m_centroids, c * m_dims, m_dims);
+            if (r < minRank || (r == minRank && c < best)) {
+                minRank = r;
+                best = c;
+                bound = m_kernel.toDistance(r) * (1 + BOUND_SLACK);
+            }
+        }
+        return best;
+    }
+
+    /** Distance from the point at {@code a[aOff]} to centroid {@code c}. */
+    public double distance(final double[] a, final int aOff, final int c) {
+        return m_kernel.distance(a, aOff, m_centroids, c * m_dims, m_dims);
+    }
+
+    private double centroidDistance(final int a, final int b) {
+        return m_kernel.distance(m_centroids, a * m_dims, m_centroids, b * m_dims, m_dims);
+    }
+
+    /** Picks {@code count} centroids, starting at centroid 0, each as far as possible from those picked before. */
+    private int[] farthestFirst(final int count) {
+        int[] pivots = new int[count];
+        double[] gap = new double[m_k];
+        Arrays.fill(gap, Double.MAX_VALUE);
+        for (int p = 0; p < count; p++) {
+            int next = 0;
+            for (int c = 1; c < m_k; c++) if (gap[c] > gap[next]) next = c;
+            if (gap[next] == 0) return Arrays.copyOf(pivots, p); // only duplicates left
+            pivots[p] = next;
+            for (int c = 0; c < m_k; c++) gap[c] = Math.min(gap[c], centroidDistance(next, c));
+        }
+        return pivots;
+    }
+}
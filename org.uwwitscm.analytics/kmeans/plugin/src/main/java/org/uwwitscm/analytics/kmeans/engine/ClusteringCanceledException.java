@@ -0,0 +1,11 @@
+package org.uwwitscm.analytics.kmeans.engine;
+
+/** Thrown by engine passes when their {@link Monitor} reports a cancellation. */
+public class ClusteringCanceledException extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    public ClusteringCanceledException(final String message) {
+        super(message);
+    }
+}
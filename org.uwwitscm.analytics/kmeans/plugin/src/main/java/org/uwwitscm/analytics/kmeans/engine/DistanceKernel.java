@@ -0,0 +1,56 @@
+package org.uwwitscm.analytics.kmeans.engine;
+
+/**
+ * Distance between two points stored at offsets of flat {@code double[]}
+ * buffers (a {@link PointMatrix} chunk or row-major centroids).
+ *
+ * Nearest-centroid searches only need to order distances, so they work on a
+ * cheaper {@link #rank} value (the squared distance for Euclidean) and
+ * convert with {@link #toDistance} only when an actual distance is needed.
+ * The batched methods compare one point with all {@code k} centroids of a
+ * row-major {@code double[k * dims]} array in a single call.
+ */
+public interface DistanceKernel {
+
+    double distance(double[] a, int aOff, double[] b, int bOff, int dims);
+
+    /** A value that is ordered like {@link #distance} but may be cheaper to compute. */
+    double rank(double[] a, int aOff, double[] b, int bOff, int dims);
+
+    /** Converts a {@link #rank} into the corresponding distance. */
+    double toDistance(double rank);
+
+    /** Squared distance, used for k-means++ weights and the WCSS. */
+    default double squared(final double[] a, final int aOff, final double[] b, final int bOff, final int dims) {
+        double d = distance(a, aOff, b, bOff, dims);
+        return d * d;
+    }
+
+    /** Whether the distance satisfies the triangle inequality, which bound-based pruning relies on. */
+    boolean isMetric();
+
+    /** Index of the centroid with the smallest distance to the point at {@code a[aOff]}. */
+    default int nearest(final double[] a, final int aOff, final double[] centroids, final int k, final int dims) {
+        int best = 0;
+        double min = Double.MAX_VALUE;
+        for (int c = 0, cOff = 0; c < k; c++, cOff += dims) {
+            double r = rank(a, aOff, centroids, cOff, dims);
+            if (r < min) { min = r; best = c; }
+        }
+        return best;
+    }
+
+    /** Stores the {@link #rank} of the point at {@code a[aOff]} against every centroid in {@code out}. */
+    default void ranks(final double[] a, final int aOff, final double[] centroids, final int k, final int dims,
+            final double[] out) {
+        for (int c = 0, cOff = 0; c < k; c++, cOff += dims) out[c] = rank(a, aOff, centroids, cOff, dims);
+    }
+
+    /** Copies {@code centroids} into one row-major array for the batched methods. */
+    static double[] flatten(final double[][] centroids) {
+        int dims = centroids[0].length;
+        double[] flat = new double[centroids.length * dims];
+        for (int c = 0; c < centroids.length; c++) System.arraycopy(centroids[c], 0, flat, c * dims, dims);
+        return flat;
+    }
+}
@@ -0,0 +1,128 @@
+package org.uwwitscm.analytics.kmeans.engine;
+
+/**
+ * Built-in {@link DistanceKernel}s selectable in the dialog.
+ *
+ * The kernels sum four independent lanes per loop iteration, which keeps the
+ * floating point pipelines busy instead of waiting on a single accumulator,
+ * and handle the remaining {@code dims % 4} coordinates afterwards.
+ */
+public enum DistanceMetric {
+    EUCLIDEAN("Euclidean", new Euclidean()), MANHATTAN("Manhattan", new Manhattan()), COSINE("Cosine", new Cosine());
+
+    private final String m_label;
+    private final DistanceKernel m_kernel;
+
+    DistanceMetric(final String label, final DistanceKernel kernel) { m_label = label; m_kernel = kernel; }
+
+    public String getLabel() { return m_label; }
+
+    public DistanceKernel kernel() { return m_kernel; }
+
+    public static DistanceMetric fromLabel(final String label) {
+        for (DistanceMetric m : values()) if (m.m_label.equals(label)) return m;
+        throw new IllegalArgumentException("Unknown distance metric: " + label);
+    }
+
+    public static String[] labels() {
+        String[] labels = new String[values().length];
+        for (DistanceMetric m : values()) labels[m.ordinal()] = m.m_label;
+        return labels;
+    }
+
+    /** Euclidean distance; comparisons and squared distances skip the square root. */
+    static final class Euclidean implements DistanceKernel {
+        @Override
+        public double rank(final double[] a, final int aOff, final double[] b, final int bOff, final int dims) {
+            double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+            int i = 0;
+            for (; i + 3 < dims; i += 4) {
+                double d0 = a[aOff + i] - b[bOff + i];
+                double d1 = a[aOff + i + 1] - b[bOff + i + 1];
+                double d2 = a[aOff + i + 2] - b[bOff + i + 2];
+                double d3 = a[aOff + i + 3] - b[bOff + i + 3];
+                s0 += d0 * d0; s1 += d1 * d1; s2 += d2 * d2; s3 += d3 * d3;
+            }
+            for (; i < dims; i++) {
+                double d = a[aOff + i] - b[bOff + i];
+                s0 += d * d;
+            }
+            return (s0 + s1) + (s2 + s3);
+        }
+
+        @Override
+        public double distance(final double[] a, final int aOff, final double[] b, final int bOff, final int dims) {
+            return Math.sqrt(rank(a, aOff, b, bOff, dims));
+        }
+
+        @Override
+        public double squared(final double[] a, final int aOff, final double[] b, final int bOff, final int dims) {
+            return rank(a, aOff, b, bOff, dims);
+        }
+
+        @Override public double toDistance(final double rank) { return Math.sqrt(rank); }
+
+        @Override public boolean isMetric() { return true; }
+    }
+
+    /** Sum of absolute coordinate differences. */
+    static final class Manhattan implements DistanceKernel {
+        @Override
+        public double distance(final double[] a, final int aOff, final double[] b, final int bOff, final int dims) {
+            double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+            int i = 0;
+            for (; i + 3 < dims; i += 4) {
+                s0 += Math.abs(a[aOff + i] - b[bOff + i]);
+                s1 += Math.abs(a[aOff + i + 1] - b[bOff + i + 1]);
+                s2 += Math.abs(a[aOff + i + 2] - b[bOff + i + 2]);
+                s3 += Math.abs(a[aOff + i + 3] - b[bOff + i + 3]);
+            }
+            for (; i < dims; i++) s0 += Math.abs(a[aOff + i] - b[bOff + i]);
+            return (s0 + s1) + (s2 + s3);
+        }
+
+        @Override
+        public double rank(final double[] a, final int aOff, final double[] b, final int bOff, final int dims) {
+            return distance(a, aOff, b, bOff, dims);
+        }
+
+        @Override public double toDistance(final double rank) { return rank; }
+
+        @Override public boolean isMetric() { return true; }
+    }
+
+    /**
+     * One minus the cosine similarity, in [0, 2]. A zero vector counts as
+     * orthogonal to every other vector. Not a metric, so bound-based pruning
+     * cannot be used with it.
+     */
+    static final class Cosine implements DistanceKernel {
+        @Override
+        public double distance(final double[] a, final int aOff, final double[] b, final int bOff, final int dims) {
+            double dot0 = 0, dot1 = 0, na0 = 0, na1 = 0, nb0 = 0, nb1 = 0;
+            int i = 0;
+            for (; i + 1 < dims; i += 2) {
+                double x0 = a[aOff + i], y0 = b[bOff + i], x1 = a[aOff + i + 1], y1 = b[bOff + i + 1];
+                dot0 += x0 * y0; na0 += x0 * x0; nb0 += y0 * y0;
+                dot1 += x1 * y1; na1 += x1 * x1; nb1 += y1 * y1;
+            }
+            for (; i < dims; i++) {
+                double x = a[aOff + i], y = b[bOff + i];
+                dot0 += x * y; na0 += x * x; nb0 += y * y;
+            }
+            double na = na0 + na1, nb = nb0 + nb1;
+            if (na == 0 || nb == 0) return (na == nb) ? 0 : 1;
+            double cos = (dot0 + dot1) / Math.sqrt(na * nb);
+            return 1 - Math.max(-1, Math.min(1, cos));
+        }
+
+        @Override
+        public double rank(final double[] a, final int aOff, final double[] b, final int bOff, final int dims) {
+            return distance(a, aOff, b, bOff, dims);
+        }
+
+        @Override public double toDistance(final double rank) { return rank; }
+
+        @Override public boolean isMetric() { return false; }
+    }
+}
@@ -0,0 +1,773 @@
+package org.uwwitscm.analytics.kmeans.engine;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+
+/**
+ * k-means++ or k-means|| seeding (see {@link KMeansPlusPlusSeeder} and
+ * {@link KMeansParallelSeeder}) followed by Lloyd iterations over a
+ * {@link PointMatrix}.
+ *
+ * The assignment and centroid-sum step is split over the chunks of the
+ * matrix by {@link ParallelChunks}. Each chunk gets its own partial sums and
+ * counts, which are merged in chunk order afterwards, so the result is
+ * bit-for-bit identical no matter how many worker threads take part.
+ *
+ * With {@link Algorithm#HAMERLY} the assignment step keeps an upper bound on
+ * the distance to the assigned centroid and a lower bound on the distance to
+ * every other centroid per point. Points whose bounds prove that the
+ * assignment cannot change are skipped, which yields the same assignments as
+ * the plain Lloyd step with far fewer distance evaluations.
+ *
+ * All distances go through a {@link DistanceKernel}. Centroids are updated
+ * as means for every metric, which is exact for Euclidean distance and the
+ * usual approximation for the others.
+ *
+ * {@link Algorithm#MINI_BATCH} replaces the Lloyd iterations with Sculley's
+ * mini-batch updates on random batches of points, followed by one full
+ * assignment pass so every point still gets its nearest final centroid.
+ *
+ * With several restarts (see {@link #setRestarts}) each k is seeded and
+ * iterated that many times from different seeds and the run with the lowest
+ * WCSS is kept. Each restart runs as a task of its own, and the Lloyd or
+ * Hamerly restarts meet every {@link #CHECK_INTERVAL} iterations, where any
+ * restart whose WCSS exceeds the best one by more than
+ * {@link #ABANDON_MARGIN} is stopped. Restarts are only compared at these
+ * barriers, so the result does not depend on how the tasks are scheduled.
+ */
+public final class KMeansClusterer {
+
+    /** Assignment strategy for the Lloyd iterations. */
+    public enum Algorithm {
+        LLOYD("Lloyd"), HAMERLY("Hamerly (triangle inequality)"), MINI_BATCH("Mini-batch");
+
+        private final String m_label;
+
+        Algorithm(final String label) { m_label = label; }
+
+        public String getLabel() { return m_label; }
+
+        public static Algorithm fromLabel(final String label) {
+            for (Algorithm a : values()) if (a.m_label.equals(label)) return a;
+            throw new IllegalArgumentException("Unknown algorithm: " + label);
+        }
+
+        public static String[] labels() {
+            String[] labels = new String[values().length];
+            for (Algorithm a : values()) labels[a.ordinal()] = a.m_label;
+            return labels;
+        }
+    }
+
+    /** How the initial centers are chosen. */
+    public enum Seeding {
+        K_MEANS_PLUS_PLUS("k-means++"), K_MEANS_PARALLEL("k-means|| (parallel)");
+
+        private final String m_label;
+
+        Seeding(final String label) { m_label = label; }
+
+        public String getLabel() { return m_label; }
+
+        public static Seeding fromLabel(final String label) {
+            for (Seeding s : values()) if (s.m_label.equals(label)) return s;
+            throw new IllegalArgumentException("Unknown seeding: " + label);
+        }
+
+        public static String[] labels() {
+            String[] labels = new String[values().length];
+            for (Seeding s : values()) labels[s.ordinal()] = s.m_label;
+            return labels;
+        }
+    }
+
+    /** Seed of the random streams when none is set. */
+    public static final long DEFAULT_SEED = 12345;
+
+    public static final class KMeansResult {
+        public double[][] centroids;
+        public int[] assignments;
+        public int iterations;
+        /** False if the iteration cap was hit before the assignments settled. */
+        public boolean converged;
+        /** Whether the assignments are exactly the nearest centroids among {@link #centroids}. */
+        public boolean exactAssignment;
+        /** True for a refinement of earlier centroids, whose iteration cap is a budget rather than a failure. */
+        public boolean refinement;
+        public long distanceEvaluations;
+        public long distanceSkipped;
+        /** Time spent choosing the initial centers; with warm starting only the centers this k added. */
+        public long seedingNanos;
+        /** Time spent in the Lloyd iterations or mini-batches, including the final assignment pass. */
+        public long iterationNanos;
+        /** Peak heap held by the per-k clustering state (assignments, bounds, partial sums, seeding), in bytes. */
+        public long workingBytes;
+        /** Restarts run for this k, and how many of them were stopped early. */
+        public int restarts = 1;
+        public int abandoned;
+        public KMeansResult(double[][] c, int[] a) { centroids=c; assignments=a; }
+    }
+
+    /** Rounds between two comparisons of the restarts. */
+    static final int CHECK_INTERVAL = 5;
+
+    /**
+     * Relative WCSS gap to the best restart above which a restart is abandoned.
+     * WCSS only decreases with further iterations, and after a few rounds the
+     * remaining decrease is mostly far below this gap, so a restart this far
+     * behind practically never overtakes the best one.
+     */
+    static final double ABANDON_MARGIN = 0.05;
+
+    /**
+     * Relative slack applied to the bound test so that rounding in the
+     * accumulated bounds never skips a point whose assignment would change.
+     */
+    private static final double BOUND_SLACK = 1e-10;
+
+    private final PointMatrix m_data;
+    private final ParallelChunks m_workers;
+    private final Algorithm m_algorithm;
+    private final DistanceKernel m_kernel;
+
+    private Seeding m_seeding = Seeding.K_MEANS_PLUS_PLUS;
+    private long m_seed = DEFAULT_SEED;
+    private int m_oversampling;
+    private boolean m_warmStart;
+    private int m_restarts = 1;
+    /** Per restart, the seeder shared by all k when warm starting; thread-safe. */
+    private Seeder[] m_seeders = new Seeder[1];
+
+    private int m_batchSize = 1024;
+    private int m_maxBatches = 100;
+    private double m_tolerance = 1e-4;
+
+    /**
+     * @param data points to cluster
+     * @param workers runs the per-chunk passes
+     * @param algorithm assignment strategy
+     * @param kernel distance between points and centroids; must be a metric for {@link Algorithm#HAMERLY}
+     */
+    public KMeansClusterer(final PointMatrix data, final ParallelChunks workers, final Algorithm algorithm,
+            final DistanceKernel kernel) {
+        if (algorithm == Algorithm.HAMERLY && !kernel.isMetric()) {
+            throw new IllegalArgumentException("Hamerly's algorithm needs a distance that satisfies the triangle inequality.");
+        }
+        m_data = data;
+        m_workers = workers;
+        m_algorithm = algorithm;
+        m_kernel = kernel;
+    }
+
+    /**
+     * Keeps the seeder between calls so that an ascending k sweep extends the
+     * centers of the previous k instead of seeding from scratch. The chosen
+     * centers are the same either way; warm starting only saves the repeated
+     * passes at the cost of holding the seeding state. Concurrent runs for
+     * different k share the seeder; whichever asks for the largest k first
+     * does the seeding and the others take prefixes.
+     */
+    public synchronized void setWarmStart(final boolean warmStart) {
+        m_warmStart = warmStart;
+        m_seeders = new Seeder[m_restarts];
+    }
+
+    /**
+     * Sets the number of seeded runs per k (n_init). Restart 0 uses the seed
+     * itself, so one restart gives the same result as before; with warm
+     * starting every restart keeps its own seeder.
+     */
+    public synchronized void setRestarts(final int restarts) {
+        m_restarts = Math.max(1, restarts);
+        m_seeders = new Seeder[m_restarts];
+    }
+
+    /**
+     * Selects the seeding and the seed of all random streams (seeding,
+     * mini-batch draws).
+     *
+     * @param maxK largest k that will be requested; k-means|| draws about
+     *            {@code 2 * maxK} candidates per round, independent of the k
+     *            of a single run, so that every k of a sweep sees the same
+     *            candidates
+     */
+    public synchronized void setSeeding(final Seeding seeding, final long seed, final int maxK) {
+        m_seeding = seeding;
+        m_seed = seed;
+        m_oversampling = 2 * maxK;
+        m_seeders = new Seeder[m_restarts];
+    }
+
+    /** The shared seeder of {@code restart} when warm starting, otherwise a fresh one. */
+    private synchronized Seeder seeder(final int k, final int restart) {
+        if (m_warmStart && m_seeders[restart] != null) return m_seeders[restart];
+        long seed = restartSeed(restart);
+        Seeder seeder = (m_seeding == Seeding.K_MEANS_PARALLEL)
+            ? new KMeansParallelSeeder(m_data, m_workers, m_kernel, seed, (m_oversampling > 0) ? m_oversampling : 2 * k)
+            : new KMeansPlusPlusSeeder(m_data, m_workers, m_kernel, seed);
+        if (m_warmStart) m_seeders[restart] = seeder;
+        return seeder;
+    }
+
+    private long restartSeed(final int restart) {
+        return m_seed + restart * 0x9E3779B97F4A7C15L;
+    }
+
+    /**
+     * Sets the parameters of {@link Algorithm#MINI_BATCH}.
+     *
+     * @param batchSize points drawn per batch
+     * @param maxBatches maximum number of batches
+     * @param tolerance stop once the summed squared centroid shift of a batch falls below this
+     *            fraction of the total per-dimension variance of the data; 0 disables the test
+     */
+    public void setMiniBatch(final int batchSize, final int maxBatches, final double tolerance) {
+        m_batchSize = batchSize;
+        m_maxBatches = maxBatches;
+        m_tolerance = tolerance;
+    }
+
+    public KMeansResult runKMeansPlusPlus(final int k, final int maxIter, final Monitor monitor)
+            throws ClusteringCanceledException {
+        long seedingNanos = 0;
+        long seederBytes = 0;
+        double[][][] seeds = new double[m_restarts][][];
+        for (int r = 0; r < m_restarts; r++) {
+            long start = System.nanoTime();
+            Seeder seeder = seeder(k, r);
+            seeds[r] = seeder.centers(k, monitor);
+            seedingNanos += System.nanoTime() - start;
+            seederBytes += seeder.sizeInBytes();
+        }
+        long seeded = System.nanoTime();
+
+        KMeansResult result = (m_algorithm == Algorithm.MINI_BATCH) ? runMiniBatches(seeds, monitor) : runLloyd(seeds, maxIter, monitor);
+        result.restarts = m_restarts;
+        result.seedingNanos = seedingNanos;
+        result.iterationNanos = System.nanoTime() - seeded;
+        result.workingBytes += seederBytes;
+        return result;
+    }
+
+    /** One restart of the Lloyd or Hamerly iterations. */
+    private final class Restart {
+        double[][] centroids;
+        final int[] assignments = new int[m_data.rows()];
+        final LloydStep step;
+        int iterations;
+        boolean changed = true;
+        boolean abandoned;
+        double wcss = Double.NaN;
+
+        Restart(final double[][] seeds) {
+            centroids = seeds;
+            step = (m_algorithm == Algorithm.HAMERLY) ? new HamerlyStep(seeds.length) : new LloydStep(seeds.length);
+        }
+
+        boolean active() { return changed && !abandoned; }
+    }
+
+    /**
+     * Pool on which the restarts of one k run as separate tasks, or null to run
+     * them one after another. The restarts hand their per-chunk passes to the
+     * chunk workers and mostly wait for them, so they need threads of their own.
+     */
+    private ExecutorService restartPool(final int restarts) {
+        int threads = Math.min(restarts, m_workers.threads());
+        return (threads > 1) ? Executors.newFixedThreadPool(threads) : null;
+    }
+
+    /**
+     * Iterates every restart as its own task and returns the one with the
+     * lowest WCSS; the counters of the result cover the work of every restart.
+     * The tasks run {@link #CHECK_INTERVAL} iterations between two comparisons.
+     */
+    private KMeansResult runLloyd(final double[][][] seeds, final int maxIter, final Monitor monitor)
+            throws ClusteringCanceledException {
+        int n = m_data.rows();
+        int k = seeds[0].length;
+        Restart[] restarts = new Restart[seeds.length];
+        for (int r = 0; r < seeds.length; r++) restarts[r] = new Restart(seeds[r]);
+        ExecutorService pool = restartPool(restarts.length);
+        try {
+            ParallelChunks runner = (pool != null) ? new ParallelChunks(pool, restarts.length) : ParallelChunks.SERIAL;
+            for (int done = 0; done < maxIter;) {
+                int rounds = Math.min(CHECK_INTERVAL, maxIter - done);
+                runner.forEach(restarts.length, monitor, r -> iterate(restarts[r], rounds, monitor));
+                done += rounds;
+                if (!Arrays.stream(restarts).anyMatch(Restart::active)) break;
+                if (restarts.length > 1 && done % CHECK_INTERVAL == 0) abandonBehind(restarts, monitor);
+            }
+        } finally {
+            if (pool != null) pool.shutdownNow();
+        }
+
+        Restart best = null;
+        long evals = 0;
+        long possible = 0;
+        long bytes = 0;
+        int abandoned = 0;
+        for (Restart run : restarts) {
+            evals += run.step.distanceEvaluations();
+            possible += (long) run.iterations * n * k;
+            bytes += (long) n * Integer.BYTES + run.step.sizeInBytes();
+            if (run.abandoned) { abandoned++; continue; }
+            if (restarts.length > 1 && Double.isNaN(run.wcss)) run.wcss = calculateWCSS(run.assignments, run.centroids, monitor);
+            if (best == null || run.wcss < best.wcss) best = run;
+        }
+        KMeansResult result = new KMeansResult(best.centroids, best.assignments);
+        result.iterations = best.iterations;
+        result.converged = !best.changed;
+        result.exactAssignment = !best.changed;
+        result.distanceEvaluations = evals;
+        result.distanceSkipped = possible - evals;
+        result.workingBytes = bytes;
+        result.abandoned = abandoned;
+        return result;
+    }
+
+    /** Runs up to {@code rounds} iterations of {@code run}, stopping early once it has converged. */
+    private static void iterate(final Restart run, final int rounds, final Monitor monitor) throws ClusteringCanceledException {
+        for (int i = 0; i < rounds && run.active(); i++) {
+            monitor.checkCanceled();
+            run.changed = run.step.run(run.centroids, run.assignments, monitor);
+            if (run.changed) run.centroids = run.step.nextCentroids(run.centroids);
+            run.iterations++;
+            run.wcss = Double.NaN;
+        }
+    }
+
+    /** Stops every unfinished restart whose WCSS is more than {@link #ABANDON_MARGIN} above the best one. */
+    private void abandonBehind(final Restart[] restarts, final Monitor monitor) throws ClusteringCanceledException {
+        double best = Double.MAX_VALUE;
+        for (Restart run : restarts) {
+            if (run.abandoned) continue;
+            if (Double.isNaN(run.wcss)) run.wcss = calculateWCSS(run.assignments, run.centroids, monitor);
+            best = Math.min(best, run.wcss);
+        }
+        for (Restart run : restarts) {
+            if (run.active() && run.wcss > best * (1 + ABANDON_MARGIN)) run.abandoned = true;
+        }
+    }
+
+    /**
+     * Runs every mini-batch restart as its own task and keeps the one with the
+     * lowest WCSS. Each restart draws from its own random stream, and the
+     * restarts are compared in order once all have finished.
+     */
+    private KMeansResult runMiniBatches(final double[][][] seeds, final Monitor monitor) throws ClusteringCanceledException {
+        KMeansResult[] runs = new KMeansResult[seeds.length];
+        double[] wcss = new double[seeds.length];
+        ExecutorService pool = restartPool(seeds.length);
+        try {
+            ParallelChunks runner = (pool != null) ? new ParallelChunks(pool, seeds.length) : ParallelChunks.SERIAL;
+            runner.forEach(seeds.length, monitor, r -> {
+                runs[r] = runMiniBatch(seeds[r], new Random(restartSeed(r)), monitor);
+                if (seeds.length > 1) wcss[r] = calculateWCSS(runs[r].assignments, runs[r].centroids, monitor);
+            });
+        } finally {
+            if (pool != null) pool.shutdownNow();
+        }
+        int best = 0;
+        long evals = 0;
+        for (int r = 0; r < seeds.length; r++) {
+            evals += runs[r].distanceEvaluations;
+            if (wcss[r] < wcss[best]) best = r;
+        }
+        runs[best].distanceEvaluations = evals;
+        return runs[best];
+    }
+
+    /**
+     * Continues from the centroids of an earlier run instead of seeding. If
+     * the earlier run covered the rows before {@code firstNewRow} and
+     * {@code sizes} holds its cluster sizes, the new rows are first assigned
+     * to their nearest centroid and folded into it as a running mean, which
+     * only touches the new rows. The result is then refined by at most
+     * {@code maxIter} Lloyd or Hamerly iterations over all rows; mini-batch
+     * settings refine with Lloyd iterations. A refinement that stops at the cap
+     * ends with one more assignment pass, so the returned assignments always
+     * belong to the returned centroids. The fold counts as seeding time.
+     *
+     * @param sizes cluster sizes of the earlier run, or null to only refine
+     */
+    public KMeansResult runIncremental(final double[][] start, final long[] sizes, final int firstNewRow,
+            final int maxIter, final Monitor monitor) throws ClusteringCanceledException {
+        long t0 = System.nanoTime();
+        double[][] centroids = start;
+        long evals = 0;
+        if (sizes != null && firstNewRow < m_data.rows()) {
+            LloydStep fold = new LloydStep(start.length);
+            CentroidIndex index = new CentroidIndex(start, m_kernel);
+            int dims = m_data.dims();
+            m_workers.forEach(m_data.chunkCount(), monitor, ch -> {
+                fold.clearPartials(ch);
+                int base = m_data.chunkStart(ch);
+                int rows = m_data.chunkRows(ch);
+                if (base + rows <= firstNewRow) return;
+                double[] buf = m_data.chunk(ch);
+                for (int r = Math.max(0, firstNewRow - base), off = r * dims; r < rows; r++, off += dims) {
+                    fold.accumulate(ch, index.nearest(buf, off), buf, off);
+                }
+                fold.countEvaluations(ch, (long) (rows - Math.max(0, firstNewRow - base)) * start.length);
+            });
+            centroids = fold.nextCentroids(start, sizes);
+            evals = fold.distanceEvaluations();
+        }
+        long folded = System.nanoTime();
+
+        KMeansResult result = runLloyd(new double[][][]{centroids}, maxIter, monitor);
+        if (!result.exactAssignment) {
+            // stopping at the cap is the normal case here, so finish with an assignment to the final centroids
+            result.assignments = assign(result.centroids, monitor);
+            result.distanceEvaluations += (long) m_data.rows() * centroids.length;
+            result.exactAssignment = true;
+        }
+        result.refinement = true;
+        result.distanceEvaluations += evals;
+        result.seedingNanos = folded - t0;
+        result.iterationNanos = System.nanoTime() - folded;
+        return result;
+    }
+
+    /** Number of points in each of the {@code k} clusters. */
+    public static long[] clusterSizes(final int[] assignments, final int k) {
+        long[] sizes = new long[k];
+        for (int a : assignments) sizes[a]++;
+        return sizes;
+    }
+
+    /** Assigns every point to its nearest centroid without moving the centroids. */
+    public int[] assign(final double[][] centroids, final Monitor monitor) throws ClusteringCanceledException {
+        int[] assignments = new int[m_data.rows()];
+        new LloydStep(centroids.length).run(centroids, assignments, monitor);
+        return assignments;
+    }
+
+    /**
+     * Runs a single Lloyd iteration: stores the nearest centroid of every
+     * point in {@code assignments} and returns the means of the new clusters.
+     */
+    public double[][] lloydIteration(final double[][] centroids, final int[] assignments, final Monitor monitor)
+            throws ClusteringCanceledException {
+        LloydStep step = new LloydStep(centroids.length);
+        step.run(centroids, assignments, monitor);
+        return step.nextCentroids(centroids);
+    }
+
+    /**
+     * Mini-batch k-means (Sculley 2010). Each batch is first assigned against
+     * the current centroids, then every point pulls its centroid towards it
+     * with the per-centroid learning rate 1 / (points seen by that centroid).
+     */
+    private KMeansResult runMiniBatch(final double[][] centroids, final Random rand, final Monitor monitor)
+            throws ClusteringCanceledException {
+        PointMatrix data = m_data;
+        int n = data.rows();
+        int dims = data.dims();
+        int k = centroids.length;
+        int batchSize = Math.min(m_batchSize, n);
+        double threshold = m_tolerance * totalVariance();
+        long[] seen = new long[k];
+        int[] batch = new int[batchSize];
+        int[] nearest = new int[batchSize];
+        double[] points = new double[batchSize * dims];
+        double[] previous = new double[k * dims];
+        long evals = 0;
+        int iter = 0;
+        boolean converged = false;
+        while (iter < m_maxBatches) {
+            monitor.checkCanceled();
+            for (int c = 0; c < k; c++) System.arraycopy(centroids[c], 0, previous, c * dims, dims);
+            for (int b = 0; b < batchSize; b++) {
+                batch[b] = rand.nextInt(n);
+                data.copyRow(batch[b], points, b * dims);
+                nearest[b] = m_kernel.nearest(points, b * dims, previous, k, dims);
+            }
+            evals += (long) batchSize * k;
+            for (int b = 0; b < batchSize; b++) {
+                int c = nearest[b];
+                double eta = 1.0 / ++seen[c];
+                for (int d = 0; d < dims; d++) centroids[c][d] += eta * (points[b * dims + d] - centroids[c][d]);
+            }
+            double shift = 0;
+            for (int c = 0; c < k; c++) {
+                for (int d = 0; d < dims; d++) {
+                    double delta = centroids[c][d] - previous[c * dims + d];
+                    shift += delta * delta;
+                }
+            }
+            iter++;
+            if (shift <= threshold) { converged = true; break; }
+        }
+
+        LloydStep step = new LloydStep(k);
+        int[] assignments = new int[n];
+        step.run(centroids, assignments, monitor);
+        KMeansResult result = new KMeansResult(centroids, assignments);
+        result.iterations = iter;
+        result.converged = converged;
+        result.exactAssignment = true;
+        result.distanceEvaluations = evals + step.distanceEvaluations();
+        result.workingBytes = (long) n * Integer.BYTES + batchSize * (2L * Integer.BYTES + (long) dims * Double.BYTES)
+            + (long) k * (dims * Double.BYTES + Long.BYTES) + step.sizeInBytes();
+        return result;
+    }
+
+    /** Sum of the per-dimension variances of the data, used to scale the mini-batch tolerance. */
+    private double totalVariance() {
+        PointMatrix data = m_data;
+        int dims = data.dims();
+        double[] mean = new double[dims];
+        double[] m2 = new double[dims];
+        long count = 0;
+        for (int ch = 0; ch < data.chunkCount(); ch++) {
+            double[] buf = data.chunk(ch);
+            for (int r = 0, off = 0; r < data.chunkRows(ch); r++, off += dims) {
+                count++;
+                for (int d = 0; d < dims; d++) {
+                    double delta = buf[off + d] - mean[d];
+                    mean[d] += delta / count;
+                    m2[d] += delta * (buf[off + d] - mean[d]);
+                }
+            }
+        }
+        double total = 0;
+        for (int d = 0; d < dims; d++) total += m2[d] / count;
+        return total;
+    }
+
+    /**
+     * Fused assignment and accumulation pass of one Lloyd iteration. The
+     * partial sums of chunk {@code ch} always land in slot {@code ch},
+     * whichever worker processed it.
+     */
+    private class LloydStep {
+        final int m_k;
+        private final double[][] m_chunkSums;
+        private final int[][] m_chunkCounts;
+        private final long[] m_chunkEvals;
+
+        LloydStep(final int k) {
+            m_k = k;
+            m_chunkSums = new double[m_data.chunkCount()][k * m_data.dims()];
+            m_chunkCounts = new int[m_data.chunkCount()][k];
+            m_chunkEvals = new long[m_data.chunkCount()];
+        }
+
+        /** Distance evaluations performed by all passes so far. */
+        long distanceEvaluations() {
+            long total = 0;
+            for (long e : m_chunkEvals) total += e;
+            return total;
+        }
+
+        /** Heap footprint of the per-chunk partials in bytes. */
+        long sizeInBytes() {
+            return (long) m_chunkSums.length * (m_k * (m_data.dims() * (long) Double.BYTES + Integer.BYTES) + Long.BYTES);
+        }
+
+        /** Reassigns every point to its nearest centroid; returns whether any assignment changed. */
+        boolean run(final double[][] centroids, final int[] assignments, final Monitor monitor)
+                throws ClusteringCanceledException {
+            double[] flat = DistanceKernel.flatten(centroids);
+            boolean[] changed = new boolean[m_data.chunkCount()];
+            m_workers.forEach(m_data.chunkCount(), monitor, ch -> changed[ch] = assignChunk(ch, flat, assignments));
+            for (boolean c : changed) if (c) return true;
+            return false;
+        }
+
+        /** Assigns the points of chunk {@code ch} against the row-major {@code centroids}. */
+        boolean assignChunk(final int ch, final double[] centroids, final int[] assignments) {
+            int dims = m_data.dims();
+            double[] buf = m_data.chunk(ch);
+            int base = m_data.chunkStart(ch);
+            clearPartials(ch);
+            boolean changed = false;
+            for (int r = 0, off = 0; r < m_data.chunkRows(ch); r++, off += dims) {
+                int best = m_kernel.nearest(buf, off, centroids, m_k, dims);
+                if (assignments[base + r] != best) { assignments[base + r] = best; changed = true; }
+                accumulate(ch, best, buf, off);
+            }
+            countEvaluations(ch, (long) m_data.chunkRows(ch) * m_k);
+            return changed;
+        }
+
+        /** Adds the point at {@code buf[off]} to the partial sums of chunk {@code ch}. */
+        final void accumulate(final int ch, final int cluster, final double[] buf, final int off) {
+            int dims = m_data.dims();
+            double[] sums = m_chunkSums[ch];
+            m_chunkCounts[ch][cluster]++;
+            int s = cluster * dims;
+            for (int d = 0; d < dims; d++) sums[s + d] += buf[off + d];
+        }
+
+        final void clearPartials(final int ch) {
+            Arrays.fill(m_chunkSums[ch], 0);
+            Arrays.fill(m_chunkCounts[ch], 0);
+        }
+
+        final void countEvaluations(final int ch, final long evals) { m_chunkEvals[ch] += evals; }
+
+        /** Merges the per-chunk partials in chunk order and returns the new centroids. */
+        double[][] nextCentroids(final double[][] centroids) {
+            return nextCentroids(centroids, null);
+        }
+
+        /**
+         * Like {@link #nextCentroids(double[][])}, but with {@code priorCounts}
+         * each centroid also stands for that many earlier points, so the
+         * accumulated points shift it by their share only.
+         */
+        double[][] nextCentroids(final double[][] centroids, final long[] priorCounts) {
+            int dims = m_data.dims();
+            double[] sums = new double[m_k * dims];
+            long[] counts = new long[m_k];
+            for (int ch = 0; ch < m_chunkSums.length; ch++) {
+                double[] part = m_chunkSums[ch];
+                for (int i = 0; i < part.length; i++) sums[i] += part[i];
+                for (int c = 0; c < m_k; c++) counts[c] += m_chunkCounts[ch][c];
+            }
+            double[][] next = new double[m_k][];
+            for (int c = 0; c < m_k; c++) {
+                if (counts[c] > 0 && priorCounts != null) {
+                    next[c] = new double[dims];
+                    double total = counts[c] + priorCounts[c];
+                    for (int d = 0; d < dims; d++) next[c][d] = (centroids[c][d] * priorCounts[c] + sums[c * dims + d]) / total;
+                } else if (counts[c] > 0) {
+                    next[c] = new double[dims];
+                    for (int d = 0; d < dims; d++) next[c][d] = sums[c * dims + d] / counts[c];
+                } else { next[c] = centroids[c]; }
+            }
+            return next;
+        }
+    }
+
+    /**
+     * Hamerly's variant of the assignment step. {@code m_upper[i]} bounds the
+     * distance from point i to its assigned centroid from above and
+     * {@code m_lower[i]} bounds the distance to every other centroid from
+     * below. A point only needs a full scan when its upper bound exceeds both
+     * its lower bound and half the distance from its centroid to the closest
+     * other centroid.
+     */
+    private final class HamerlyStep extends LloydStep {
+        private final double[] m_upper;
+        private final double[] m_lower;
+        private final double[] m_halfGap;
+        private double[] m_drift;
+        private int m_maxDriftCluster;
+        private double m_maxDrift;
+        private double m_secondDrift;
+        private boolean m_initialized;
+
+        HamerlyStep(final int k) {
+            super(k);
+            m_upper = new double[m_data.rows()];
+            m_lower = new double[m_data.rows()];
+            m_halfGap = new double[k];
+        }
+
+        @Override
+        long sizeInBytes() {
+            return super.sizeInBytes() + (2L * m_upper.length + 2L * m_k) * Double.BYTES;
+        }
+
+        @Override
+        boolean run(final double[][] centroids, final int[] assignments, final Monitor monitor)
+                throws ClusteringCanceledException {
+            for (int c = 0; c < m_k; c++) {
+                double min = Double.MAX_VALUE;
+                for (int o = 0; o < m_k; o++) {
+                    if (o == c) continue;
+                    double d = m_kernel.distance(centroids[c], 0, centroids[o], 0, centroids[c].length);
+                    if (d < min) min = d;
+                }
+                m_halfGap[c] = 0.5 * min;
+            }
+            boolean changed = super.run(centroids, assignments, monitor);
+            m_initialized = true;
+            m_drift = null;
+            return changed;
+        }
+
+        @Override
+        boolean assignChunk(final int ch, final double[] centroids, final int[] assignments) {
+            int dims = m_data.dims();
+            double[] buf = m_data.chunk(ch);
+            int base = m_data.chunkStart(ch);
+            double[] ranks = new double[m_k];
+            clearPartials(ch);
+            boolean changed = false;
+            long evals = 0;
+            for (int r = 0, off = 0; r < m_data.chunkRows(ch); r++, off += dims) {
+                int i = base + r;
+                int a = assignments[i];
+                if (m_initialized) {
+                    if (m_drift != null) {
+                        m_upper[i] += m_drift[a];
+                        m_lower[i] -= (a == m_maxDriftCluster) ? m_secondDrift : m_maxDrift;
+                    }
+                    double bound = Math.max(m_halfGap[a], m_lower[i]);
+                    if (m_upper[i] * (1 + BOUND_SLACK) < bound) { accumulate(ch, a, buf, off); continue; }
+                    m_upper[i] = m_kernel.distance(buf, off, centroids, a * dims, dims);
+                    evals++;
+                    if (m_upper[i] * (1 + BOUND_SLACK) < bound) { accumulate(ch, a, buf, off); continue; }
+                }
+                m_kernel.ranks(buf, off, centroids, m_k, dims, ranks);
+                int best = 0; double r1 = Double.MAX_VALUE; double r2 = Double.MAX_VALUE;
+                for (int c = 0; c < m_k; c++) {
+                    if (ranks[c] < r1) { r2 = r1; r1 = ranks[c]; best = c; }
+                    else if (ranks[c] < r2) { r2 = ranks[c]; }
+                }
+                evals += m_k;
+                m_upper[i] = m_kernel.toDistance(r1);
+                m_lower[i] = m_kernel.toDistance(r2);
+                if (a != best) { assignments[i] = best; changed = true; }
+                accumulate(ch, best, buf, off);
+            }
+            countEvaluations(ch, evals);
+            return changed;
+        }
+
+        @Override
+        double[][] nextCentroids(final double[][] centroids) {
+            double[][] next = super.nextCentroids(centroids);
+            m_drift = new double[m_k];
+            m_maxDrift = 0; m_secondDrift = 0; m_maxDriftCluster = -1;
+            for (int c = 0; c < m_k; c++) {
+                m_drift[c] = m_kernel.distance(centroids[c], 0, next[c], 0, next[c].length);
+                if (m_drift[c] > m_maxDrift) { m_secondDrift = m_maxDrift; m_maxDrift = m_drift[c]; m_maxDriftCluster = c; }
+                else if (m_drift[c] > m_secondDrift) { m_secondDrift = m_drift[c]; }
+            }
+            return next;
+        }
+    }
+
+    /**
+     * Within-cluster sum of squared distances. Every chunk sums its own rows
+     * and the partials are added in chunk order, so the value is the same for
+     * every thread count.
+     */
+    public double calculateWCSS(final int[] assignments, final double[][] centroids, final Monitor monitor)
+            throws ClusteringCanceledException {
+        PointMatrix data = m_data;
+        int dims = data.dims();
+        double[] partials = new double[data.chunkCount()];
+        m_workers.forEach(data.chunkCount(), monitor, ch -> {
+            double[] buf = data.chunk(ch);
+            int base = data.chunkStart(ch);
+            double sum = 0;
+            for (int r = 0, off = 0; r < data.chunkRows(ch); r++, off += dims) {
+                sum += m_kernel.squared(buf, off, centroids[assignments[base + r]], 0, dims);
+            }
+            partials[ch] = sum;
+        });
+        double wcss = 0;
+        for (double p : partials) wcss += p;
+        return wcss;
+    }
+}
@@ -0,0 +1,100 @@
+package org.uwwitscm.analytics.kmeans.engine;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+
+/**
+ * Incremental k-means++ seeding.
+ *
+ * The seeder keeps the squared distance from every point to its closest
+ * center chosen so far and only compares against the newly added center, so
+ * choosing k centers costs O(n&middot;k) instead of O(n&middot;k&sup2;).
+ * Because the centers are drawn from one random stream in sequence, the
+ * first k centers of a k+1 seeding are exactly the centers of a k seeding.
+ * A single seeder can therefore serve a whole k sweep; it is synchronized so
+ * that concurrently running k values can share it.
+ */
+public final class KMeansPlusPlusSeeder implements Seeder {
+
+    private final PointMatrix m_data;
+    private final ParallelChunks m_workers;
+    private final DistanceKernel m_kernel;
+    private final Random m_rand;
+    private final List<double[]> m_centers = new ArrayList<>();
+    private final double[] m_minDistSq;
+    private final double[] m_chunkSums;
+    private int m_applied;
+
+    public KMeansPlusPlusSeeder(final PointMatrix data, final ParallelChunks workers, final DistanceKernel kernel,
+            final long seed) {
+        m_data = data;
+        m_workers = workers;
+        m_kernel = kernel;
+        m_rand = new Random(seed);
+        m_minDistSq = new double[data.rows()];
+        m_chunkSums = new double[data.chunkCount()];
+    }
+
+    /** Number of centers chosen so far. */
+    public synchronized int size() { return m_centers.size(); }
+
+    @Override
+    public long sizeInBytes() { return (long) (m_minDistSq.length + m_chunkSums.length) * Double.BYTES; }
+
+    @Override
+    public synchronized double[][] centers(final int k, final Monitor monitor) throws ClusteringCanceledException {
+        PointMatrix data = m_data;
+        int dims = data.dims();
+        if (m_centers.isEmpty()) {
+            double[] first = new double[dims];
+            data.copyRow(m_rand.nextInt(data.rows()), first, 0);
+            m_centers.add(first);
+        }
+        while (m_centers.size() < k) {
+            // fold in centers that were chosen last but not yet applied to the distances
+            for (; m_applied < m_centers.size(); m_applied++) update(m_centers.get(m_applied), m_applied == 0, monitor);
+            double[] next = new double[dims];
+            data.copyRow(sample(), next, 0);
+            m_centers.add(next);
+        }
+        double[][] result = new double[k][];
+        for (int c = 0; c < k; c++) result[c] = m_centers.get(c).clone();
+        return result;
+    }
+
+    /** Lowers the per-point distances against {@code center} and refreshes the per-chunk sums. */
+    private void update(final double[] center, final boolean first, final Monitor monitor)
+            throws ClusteringCanceledException {
+        int dims = m_data.dims();
+        m_workers.forEach(m_data.chunkCount(), monitor, ch -> {
+            double[] buf = m_data.chunk(ch);
+            int base = m_data.chunkStart(ch);
+            double sum = 0;
+            for (int r = 0, off = 0; r < m_data.chunkRows(ch); r++, off += dims) {
+                double dSq = m_kernel.squared(buf, off, center, 0, dims);
+                if (first || dSq < m_minDistSq[base + r]) m_minDistSq[base + r] = dSq;
+                sum += m_minDistSq[base + r];
+            }
+            m_chunkSums[ch] = sum;
+        });
+    }
+
+    /** Draws the next center with probability proportional to the squared distance. */
+    private int sample() {
+        double total = 0;
+        for (double s : m_chunkSums) total += s;
+        double r = m_rand.nextDouble() * total;
+        double curSum = 0;
+        for (int ch = 0; ch < m_chunkSums.length; ch++) {
+            if (curSum + m_chunkSums[ch] < r && ch < m_chunkSums.length - 1) { curSum += m_chunkSums[ch]; continue; }
+            int base = m_data.chunkStart(ch);
+            for (int i = base; i < base + m_data.chunkRows(ch); i++) {
+                curSum += m_minDistSq[i];
+                if (curSum >= r) return i;
+            }
+        }
+        return m_data.rows() - 1;
+    }
+}
@@ -0,0 +1,16 @@
+package org.uwwitscm.analytics.kmeans.engine;
+
+/**
+ * Cancellation hook polled by the clustering passes. The engine only depends
+ * on this interface, so it runs inside a node (where it wraps the
+ * {@code ExecutionMonitor}) as well as in benchmarks without KNIME.
+ */
+@FunctionalInterface
+public interface Monitor {
+
+    /** Never cancels. */
+    Monitor NONE = () -> {};
+
+    /** Throws if the computation should stop. */
+    void checkCanceled() throws ClusteringCanceledException;
+}
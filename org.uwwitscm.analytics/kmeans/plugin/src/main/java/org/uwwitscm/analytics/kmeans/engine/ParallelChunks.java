@@ -0,0 +1,76 @@
+package org.uwwitscm.analytics.kmeans.engine;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Runs an indexed task (usually one per {@link PointMatrix} chunk) on a
+ * bounded number of workers. Workers claim indices from a shared counter, so
+ * callers that want deterministic results store per-index partials and merge
+ * them in index order afterwards.
+ */
+public final class ParallelChunks {
+
+    /** Work for a single index. */
+    interface IndexTask {
+        void run(int index) throws ClusteringCanceledException;
+    }
+
+    /** Runs every task on the calling thread. */
+    public static final ParallelChunks SERIAL = new ParallelChunks(null, 1);
+
+    private final ExecutorService m_pool;
+    private final int m_threads;
+
+    /**
+     * @param pool executor for the worker tasks, or {@code null} to run on the calling thread
+     * @param threads maximum number of concurrent workers; ignored without a pool
+     */
+    public ParallelChunks(final ExecutorService pool, final int threads) {
+        m_pool = pool;
+        m_threads = (pool == null) ? 1 : Math.max(1, threads);
+    }
+
+    public int threads() { return m_threads; }
+
+    /** Runs {@code task} for every index in {@code [0, count)}, checking for cancellation before each one. */
+    void forEach(final int count, final Monitor monitor, final IndexTask task) throws ClusteringCanceledException {
+        int workers = Math.min(m_threads, count);
+        if (workers <= 1) {
+            for (int i = 0; i < count; i++) {
+                monitor.checkCanceled();
+                task.run(i);
+            }
+            return;
+        }
+        AtomicInteger next = new AtomicInteger();
+        List<Future<Void>> futures = new ArrayList<>(workers);
+        for (int t = 0; t < workers; t++) {
+            futures.add(m_pool.submit(() -> {
+                for (int i = next.getAndIncrement(); i < count; i = next.getAndIncrement()) {
+                    monitor.checkCanceled();
+                    task.run(i);
+                }
+                return null;
+            }));
+        }
+        try {
+            for (Future<Void> f : futures) f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ClusteringCanceledException("Interrupted while waiting for clustering workers.");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof ClusteringCanceledException) throw (ClusteringCanceledException) e.getCause();
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+            if (e.getCause() instanceof Error) throw (Error) e.getCause();
+            throw new IllegalStateException(e.getCause());
+        } finally {
+            for (Future<Void> f : futures) f.cancel(true);
+        }
+    }
+}
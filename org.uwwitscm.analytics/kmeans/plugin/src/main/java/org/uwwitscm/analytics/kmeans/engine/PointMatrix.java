@@ -0,0 +1,357 @@
+package org.uwwitscm.analytics.kmeans.engine;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Dense, row-major store of the numeric points being clustered.
+ *
+ * Rows are packed back to back with stride {@code dims} into fixed-size
+ * chunks, so a row costs no object header of its own and the total number of
+ * elements is not limited by the maximum array length. Hot loops should walk
+ * the matrix chunk by chunk:
+ *
+ * <pre>
+ * for (int c = 0; c &lt; m.chunkCount(); c++) {
+ *     double[] buf = m.chunk(c);
+ *     for (int r = 0, off = 0; r &lt; m.chunkRows(c); r++, off += dims) { ... }
+ * }
+ * </pre>
+ *
+ * With {@link Precision#FLOAT} the values are held as {@code float}, which
+ * halves the memory and the bandwidth of every pass. {@link #chunk(int)} then
+ * widens the chunk into a per-thread {@code double[]} buffer that stays in
+ * cache, so all arithmetic, sums included, still runs in double precision.
+ *
+ * A matrix created with a spill file keeps its values out of the heap: rows
+ * are appended to the file while loading, {@link #trim()} maps it read-only in
+ * segments of whole chunks, and {@link #chunk(int)} copies one chunk at a time
+ * from the mapping into the per-thread buffer, so every pass streams over the
+ * file through the page cache. {@link #close()} unmaps and deletes the file.
+ */
+public final class PointMatrix implements AutoCloseable {
+
+    /** Storage precision of the point values. */
+    public enum Precision {
+        DOUBLE("Double (64-bit)"), FLOAT("Float (32-bit)");
+
+        private final String m_label;
+
+        Precision(final String label) { m_label = label; }
+
+        public String getLabel() { return m_label; }
+
+        public static Precision fromLabel(final String label) {
+            for (Precision p : values()) if (p.m_label.equals(label)) return p;
+            throw new IllegalArgumentException("Unknown precision: " + label);
+        }
+
+        public static String[] labels() {
+            String[] labels = new String[values().length];
+            for (Precision p : values()) labels[p.ordinal()] = p.m_label;
+            return labels;
+        }
+    }
+
+    /** Target number of values per chunk (512 KiB as double). */
+    static final int CHUNK_ELEMENTS = 1 << 16;
+
+    /** Upper bound for the bytes of one mapped segment; a mapping cannot exceed 2 GiB. */
+    private static final int SEGMENT_BYTES = 1 << 30;
+
+    private final int m_dims;
+    private final int m_rowsPerChunk;
+    private final Precision m_precision;
+    private double[][] m_chunks;
+    private float[][] m_floatChunks;
+    private int m_chunkCount;
+    private int m_rows;
+
+    /** Spill file and its state; all null for a heap matrix. */
+    private final File m_file;
+    private FileChannel m_channel;
+    private ByteBuffer m_writeBuffer;
+    private DoubleBuffer[] m_doubleSegments;
+    private FloatBuffer[] m_floatSegments;
+    private int m_chunksPerSegment;
+
+    /** Widening buffer of {@link #chunk(int)} in float and file mode, one per thread. */
+    private final ThreadLocal<double[]> m_scratch;
+
+    public PointMatrix(final int dims) {
+        this(dims, Precision.DOUBLE);
+    }
+
+    public PointMatrix(final int dims, final Precision precision) {
+        if (dims < 1) throw new IllegalArgumentException("Matrix needs at least one dimension.");
+        m_dims = dims;
+        m_rowsPerChunk = Math.max(1, CHUNK_ELEMENTS / dims);
+        m_precision = precision;
+        m_file = null;
+        if (precision == Precision.FLOAT) {
+            m_floatChunks = new float[4][];
+            m_scratch = ThreadLocal.withInitial(this::chunkBuffer);
+        } else {
+            m_chunks = new double[4][];
+            m_scratch = null;
+        }
+    }
+
+    /**
+     * Creates a matrix whose values are written to and memory-mapped from
+     * {@code spillFile}, which is truncated first and deleted by {@link #close()}.
+     */
+    public PointMatrix(final int dims, final Precision precision, final File spillFile) throws IOException {
+        if (dims < 1) throw new IllegalArgumentException("Matrix needs at least one dimension.");
+        m_dims = dims;
+        m_rowsPerChunk = Math.max(1, CHUNK_ELEMENTS / dims);
+        m_precision = precision;
+        m_file = spillFile;
+        m_channel = FileChannel.open(spillFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+            StandardOpenOption.READ, StandardOpenOption.WRITE);
+        m_writeBuffer = ByteBuffer.allocateDirect(m_rowsPerChunk * dims * valueBytes()).order(ByteOrder.nativeOrder());
+        m_scratch = ThreadLocal.withInitial(this::chunkBuffer);
+    }
+
+    /** Bytes needed to store {@code rows} points of {@code dims} values. */
+    public static long estimateBytes(final long rows, final int dims, final Precision precision) {
+        return rows * dims * ((precision == Precision.FLOAT) ? Float.BYTES : Double.BYTES);
+    }
+
+    public int rows() { return m_rows; }
+    public int dims() { return m_dims; }
+    public Precision precision() { return m_precision; }
+    /** Whether the values live in a memory-mapped spill file instead of the heap. */
+    public boolean isMapped() { return m_file != null; }
+    int rowsPerChunk() { return m_rowsPerChunk; }
+    int chunkCount() { return m_chunkCount; }
+
+    /**
+     * Values of chunk {@code c}; row {@code r} of the chunk starts at
+     * {@code r * dims}. In float and file mode the returned array is a per-thread
+     * buffer that is overwritten by the next call on the same thread; use
+     * {@link #chunk(int, double[])} to hold two chunks at once.
+     */
+    double[] chunk(final int c) {
+        return (m_chunks != null) ? m_chunks[c] : widen(c, m_scratch.get());
+    }
+
+    /** Like {@link #chunk(int)}, but copies float and mapped chunks into {@code buffer} from {@link #chunkBuffer()}. */
+    double[] chunk(final int c, final double[] buffer) {
+        return (m_chunks != null) ? m_chunks[c] : widen(c, buffer);
+    }
+
+    /** A buffer for {@link #chunk(int, double[])}; empty for a heap double matrix, which needs none. */
+    double[] chunkBuffer() {
+        return new double[(m_chunks != null) ? 0 : m_rowsPerChunk * m_dims];
+    }
+
+    private double[] widen(final int c, final double[] buffer) {
+        int len = chunkRows(c) * m_dims;
+        if (m_file != null) {
+            int seg = c / m_chunksPerSegment;
+            int base = (c % m_chunksPerSegment) * m_rowsPerChunk * m_dims;
+            if (m_doubleSegments != null) {
+                m_doubleSegments[seg].get(base, buffer, 0, len);
+            } else {
+                FloatBuffer src = m_floatSegments[seg];
+                for (int i = 0; i < len; i++) buffer[i] = src.get(base + i);
+            }
+            return buffer;
+        }
+        float[] src = m_floatChunks[c];
+        for (int i = 0; i < len; i++) buffer[i] = src[i];
+        return buffer;
+    }
+
+    /** Number of filled rows in chunk {@code c}. */
+    int chunkRows(final int c) {
+        return (c < m_chunkCount - 1) ? m_rowsPerChunk : m_rows - c * m_rowsPerChunk;
+    }
+
+    /** Global index of the first row in chunk {@code c}. */
+    int chunkStart(final int c) { return c * m_rowsPerChunk; }
+
+    double get(final int row, final int d) {
+        int c = row / m_rowsPerChunk;
+        int i = (row % m_rowsPerChunk) * m_dims + d;
+        if (m_file != null) {
+            i += (c % m_chunksPerSegment) * m_rowsPerChunk * m_dims;
+            c /= m_chunksPerSegment;
+            return (m_doubleSegments != null) ? m_doubleSegments[c].get(i) : m_floatSegments[c].get(i);
+        }
+        return (m_chunks != null) ? m_chunks[c][i] : m_floatChunks[c][i];
+    }
+
+    /** Copies row {@code row} into {@code dst} starting at {@code dstOff}. */
+    void copyRow(final int row, final double[] dst, final int dstOff) {
+        int c = row / m_rowsPerChunk;
+        int off = (row % m_rowsPerChunk) * m_dims;
+        if (m_file != null) {
+            for (int d = 0; d < m_dims; d++) dst[dstOff + d] = get(row, d);
+        } else if (m_chunks != null) {
+            System.arraycopy(m_chunks[c], off, dst, dstOff, m_dims);
+        } else {
+            float[] src = m_floatChunks[c];
+            for (int d = 0; d < m_dims; d++) dst[dstOff + d] = src[off + d];
+        }
+    }
+
+    /** Appends a copy of the first {@code dims} values of {@code vec} as a new row. */
+    public void add(final double[] vec) {
+        if (m_rows == Integer.MAX_VALUE) throw new IllegalStateException("Too many rows for a single point matrix.");
+        int r = m_rows % m_rowsPerChunk;
+        if (m_file != null) {
+            if (r == 0) m_chunkCount++;
+            if (m_precision == Precision.FLOAT) for (int d = 0; d < m_dims; d++) m_writeBuffer.putFloat((float) vec[d]);
+            else for (int d = 0; d < m_dims; d++) m_writeBuffer.putDouble(vec[d]);
+            if (!m_writeBuffer.hasRemaining()) flush();
+        } else if (m_chunks != null) {
+            if (r == 0) {
+                if (m_chunkCount == m_chunks.length) m_chunks = Arrays.copyOf(m_chunks, m_chunkCount * 2);
+                m_chunks[m_chunkCount++] = new double[m_rowsPerChunk * m_dims];
+            }
+            System.arraycopy(vec, 0, m_chunks[m_chunkCount - 1], r * m_dims, m_dims);
+        } else {
+            if (r == 0) {
+                if (m_chunkCount == m_floatChunks.length) m_floatChunks = Arrays.copyOf(m_floatChunks, m_chunkCount * 2);
+                m_floatChunks[m_chunkCount++] = new float[m_rowsPerChunk * m_dims];
+            }
+            float[] dst = m_floatChunks[m_chunkCount - 1];
+            for (int d = 0; d < m_dims; d++) dst[r * m_dims + d] = (float) vec[d];
+        }
+        m_rows++;
+    }
+
+    private void flush() {
+        try {
+            m_writeBuffer.flip();
+            while (m_writeBuffer.hasRemaining()) m_channel.write(m_writeBuffer);
+            m_writeBuffer.clear();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not write to spill file " + m_file, e);
+        }
+    }
+
+    /**
+     * Shrinks the last chunk to its filled size once loading is complete; a
+     * file-backed matrix is mapped here and cannot be read before.
+     */
+    public void trim() {
+        if (m_file != null) {
+            map();
+            return;
+        }
+        if (m_chunkCount == 0) return;
+        int last = m_chunkCount - 1;
+        int len = chunkRows(last) * m_dims;
+        if (m_chunks != null) {
+            if (m_chunks[last].length != len) m_chunks[last] = Arrays.copyOf(m_chunks[last], len);
+        } else {
+            if (m_floatChunks[last].length != len) m_floatChunks[last] = Arrays.copyOf(m_floatChunks[last], len);
+        }
+    }
+
+    private void map() {
+        if (m_channel == null) return;
+        flush();
+        int chunkBytes = m_rowsPerChunk * m_dims * valueBytes();
+        m_chunksPerSegment = Math.max(1, SEGMENT_BYTES / chunkBytes);
+        long segmentBytes = (long) m_chunksPerSegment * chunkBytes;
+        try {
+            long size = m_channel.size();
+            int segments = (int) ((size + segmentBytes - 1) / segmentBytes);
+            if (m_precision == Precision.FLOAT) m_floatSegments = new FloatBuffer[segments];
+            else m_doubleSegments = new DoubleBuffer[segments];
+            for (int s = 0; s < segments; s++) {
+                long start = s * segmentBytes;
+                MappedByteBuffer map = m_channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(segmentBytes, size - start));
+                map.order(ByteOrder.nativeOrder());
+                if (m_floatSegments != null) m_floatSegments[s] = map.asFloatBuffer();
+                else m_doubleSegments[s] = map.asDoubleBuffer();
+            }
+            m_channel.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not map spill file " + m_file, e);
+        }
+        m_channel = null;
+        m_writeBuffer = null;
+    }
+
+    /**
+     * Releases the mapping and deletes the spill file; does nothing for a heap
+     * matrix. The matrix cannot be used afterwards.
+     */
+    @Override
+    public void close() {
+        if (m_file == null) return;
+        m_doubleSegments = null;
+        m_floatSegments = null;
+        try {
+            if (m_channel != null) m_channel.close();
+            Files.deleteIfExists(m_file.toPath());
+        } catch (IOException e) {
+            // Some platforms refuse to delete a file that is still mapped until the mapping is collected.
+            m_file.deleteOnExit();
+        }
+        m_channel = null;
+        m_writeBuffer = null;
+    }
+
+    private int valueBytes() {
+        return (m_precision == Precision.FLOAT) ? Float.BYTES : Double.BYTES;
+    }
+
+    /**
+     * 64-bit fingerprint of the shape and all stored values, used to recognise
+     * an unchanged input between executions.
+     */
+    public long fingerprint() {
+        return fingerprint(m_rows);
+    }
+
+    /**
+     * Fingerprint of the first {@code rows} rows. It equals the
+     * {@link #fingerprint()} of a matrix holding only these rows, so it tells
+     * whether an earlier input is a prefix of this one.
+     */
+    public long fingerprint(final int rows) {
+        long h = mix(rows * 31L + m_dims);
+        boolean floats = m_precision == Precision.FLOAT;
+        for (int c = 0; c < m_chunkCount && chunkStart(c) < rows; c++) {
+            int len = Math.min(chunkRows(c), rows - chunkStart(c)) * m_dims;
+            double[] buf = chunk(c);
+            if (floats) for (int i = 0; i < len; i++) h = mix(h ^ Float.floatToIntBits((float) buf[i])) + i;
+            else for (int i = 0; i < len; i++) h = mix(h ^ Double.doubleToLongBits(buf[i])) + i;
+        }
+        return h;
+    }
+
+    /** Finalisation step of MurmurHash3's 64-bit mixer. */
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /** Approximate heap footprint of the stored values in bytes; zero for a file-backed matrix. */
+    public long sizeInBytes() {
+        if (m_file != null) return 0;
+        long elements = 0;
+        for (int c = 0; c < m_chunkCount; c++) elements += (m_chunks != null) ? m_chunks[c].length : m_floatChunks[c].length;
+        return elements * ((m_chunks != null) ? Double.BYTES : Float.BYTES);
+    }
+}
@@ -0,0 +1,15 @@
+package org.uwwitscm.analytics.kmeans.engine;
+
+/**
+ * Chooses initial centers. Implementations draw the centers of one seeder
+ * from a fixed random stream in sequence, so the first k centers for k+1 are
+ * the centers for k and one seeder can serve a whole sweep.
+ */
+interface Seeder {
+
+    /** Returns copies of the first {@code k} centers, choosing more if needed. */
+    double[][] centers(int k, Monitor monitor) throws ClusteringCanceledException;
+
+    /** Heap footprint of the per-point seeding state in bytes. */
+    long sizeInBytes();
+}
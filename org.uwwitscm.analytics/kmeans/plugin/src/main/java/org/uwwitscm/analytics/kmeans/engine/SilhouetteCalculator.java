@@ -0,0 +1,276 @@
+package org.uwwitscm.analytics.kmeans.engine;
+
+import java.util.Random;
+
+
+/**
+ * Average silhouette coefficient of a clustering, computed with one of three
+ * strategies:
+ * <ul>
+ * <li>{@link Method#EXACT}: every point against every other point, blocked
+ * chunk by chunk and spread over the workers. O(n&sup2;).</li>
+ * <li>{@link Method#SAMPLED}: exact silhouettes of a sample stratified by
+ * cluster, combined into a stratified mean with a 95% confidence interval.
+ * O(s&middot;n) for sample size s.</li>
+ * <li>{@link Method#SIMPLIFIED}: distances to centroids instead of mean
+ * distances to cluster members. O(n&middot;k).</li>
+ * </ul>
+ * Distances come from the same {@link DistanceKernel} as the clustering.
+ * As in the original implementation, points in singleton clusters are left
+ * out of the exact and sampled averages.
+ */
+public final class SilhouetteCalculator {
+
+    /** Silhouette strategy selectable in the dialog. */
+    public enum Method {
+        EXACT("Exact"), SAMPLED("Sampled estimate"), SIMPLIFIED("Simplified (centroid-based)");
+
+        private final String m_label;
+
+        Method(final String label) { m_label = label; }
+
+        public String getLabel() { return m_label; }
+
+        public static Method fromLabel(final String label) {
+            for (Method m : values()) if (m.m_label.equals(label)) return m;
+            throw new IllegalArgumentException("Unknown silhouette method: " + label);
+        }
+
+        public static String[] labels() {
+            String[] labels = new String[values().length];
+            for (Method m : values()) labels[m.ordinal()] = m.m_label;
+            return labels;
+        }
+    }
+
+    /** Silhouette value together with how it was obtained. */
+    public static final class Result {
+        public final double value;
+        public final Method method;
+        public final int sampleSize;
+        /** Bounds of the 95% confidence interval; NaN unless the value is a sampled estimate. */
+        public final double ciLower, ciUpper;
+
+        public Result(final double value, final Method method, final int sampleSize, final double ciLower, final double ciUpper) {
+            this.value = value; this.method = method; this.sampleSize = sampleSize;
+            this.ciLower = ciLower; this.ciUpper = ciUpper;
+        }
+    }
+
+    /** Two-sided 95% normal quantile. */
+    private static final double Z_95 = 1.959963984540054;
+
+    /** Sampled points handled per worker task. */
+    private static final int SAMPLE_BLOCK = 64;
+
+    private final PointMatrix m_data;
+    private final ParallelChunks m_workers;
+    private final DistanceKernel m_kernel;
+
+    public SilhouetteCalculator(final PointMatrix data, final ParallelChunks workers, final DistanceKernel kernel) {
+        m_data = data;
+        m_workers = workers;
+        m_kernel = kernel;
+    }
+
+    /**
+     * @param sampleSize number of points evaluated by {@link Method#SAMPLED}; falls back to
+     *            the exact computation if it covers the whole table
+     * @param seed seed for drawing the sample
+     */
+    public Result compute(final Method method, final int sampleSize, final long seed, final int[] assignments,
+            final double[][] centroids, final Monitor monitor) throws ClusteringCanceledException {
+        int n = m_data.rows();
+        if (centroids.length < 2) return new Result(0.0, method, n, Double.NaN, Double.NaN);
+        switch (method) {
+            case SIMPLIFIED:
+                return new Result(simplified(assignments, centroids, monitor), method, n, Double.NaN, Double.NaN);
+            case SAMPLED:
+                if (sampleSize < n) return sampled(sampleSize, seed, assignments, centroids.length, monitor);
+                return new Result(exact(assignments, centroids.length, monitor), Method.EXACT, n, Double.NaN, Double.NaN);
+            default:
+                return new Result(exact(assignments, centroids.length, monitor), Method.EXACT, n, Double.NaN, Double.NaN);
+        }
+    }
+
+    private static int[] clusterSizes(final int[] assignments, final int k) {
+        int[] sizes = new int[k];
+        for (int a : assignments) sizes[a]++;
+        return sizes;
+    }
+
+    /**
+     * Silhouette of a single point given the summed distances to every
+     * cluster, or NaN if the point is alone in its cluster.
+     */
+    private static double silhouette(final double[] dists, final int distOff, final int[] sizes, final int own) {
+        if (sizes[own] <= 1) return Double.NaN;
+        double a = dists[distOff + own] / (sizes[own] - 1);
+        double minB = Double.MAX_VALUE;
+        for (int c = 0; c < sizes.length; c++) {
+            if (c == own || sizes[c] == 0) continue;
+            double b = dists[distOff + c] / sizes[c];
+            if (b < minB) minB = b;
+        }
+        if (minB == Double.MAX_VALUE) minB = 0;
+        double maxVal = Math.max(a, minB);
+        return (maxVal > 0) ? (minB - a) / maxVal : 0;
+    }
+
+    /**
+     * Adds the distance from point {@code i} (at {@code bufI[offI]}) to every
+     * point of chunk {@code ch}, whose values are in {@code buf}, into
+     * {@code dists[distOff + cluster]}.
+     */
+    private void accumulateDistances(final int i, final double[] bufI, final int offI, final int[] assignments,
+            final double[] dists, final int distOff, final int ch, final double[] buf) {
+        int dims = m_data.dims();
+        int base = m_data.chunkStart(ch);
+        for (int r = 0, off = 0; r < m_data.chunkRows(ch); r++, off += dims) {
+            if (base + r == i) continue;
+            dists[distOff + assignments[base + r]] += m_kernel.distance(bufI, offI, buf, off, dims);
+        }
+    }
+
+    private double exact(final int[] assignments, final int k, final Monitor monitor)
+            throws ClusteringCanceledException {
+        int[] sizes = clusterSizes(assignments, k);
+        int chunks = m_data.chunkCount();
+        int dims = m_data.dims();
+        double[] chunkSum = new double[chunks];
+        long[] chunkCount = new long[chunks];
+        m_workers.forEach(chunks, monitor, ci -> {
+            double[] bufI = m_data.chunk(ci, m_data.chunkBuffer());
+            int baseI = m_data.chunkStart(ci);
+            int rowsI = m_data.chunkRows(ci);
+            double[] dists = new double[rowsI * k];
+            // block over the j chunks so both row blocks stay cache resident
+            for (int cj = 0; cj < chunks; cj++) {
+                monitor.checkCanceled();
+                double[] bufJ = m_data.chunk(cj);
+                for (int r = 0, off = 0; r < rowsI; r++, off += dims) {
+                    accumulateDistances(baseI + r, bufI, off, assignments, dists, r * k, cj, bufJ);
+                }
+            }
+            for (int r = 0; r < rowsI; r++) {
+                double s = silhouette(dists, r * k, sizes, assignments[baseI + r]);
+                if (Double.isNaN(s)) continue;
+                chunkSum[ci] += s;
+                chunkCount[ci]++;
+            }
+        });
+        double sum = 0; long count = 0;
+        for (int c = 0; c < chunks; c++) { sum += chunkSum[c]; count += chunkCount[c]; }
+        return (count > 0) ? sum / count : 0.0;
+    }
+
+    private Result sampled(final int sampleSize, final long seed, final int[] assignments, final int k,
+            final Monitor monitor) throws ClusteringCanceledException {
+        int n = m_data.rows();
+        int[] sizes = clusterSizes(assignments, k);
+
+        // points grouped by cluster, strata start at offsets[c]
+        int[] offsets = new int[k + 1];
+        for (int c = 0; c < k; c++) offsets[c + 1] = offsets[c] + sizes[c];
+        int[] byCluster = new int[n];
+        int[] fill = offsets.clone();
+        for (int i = 0; i < n; i++) byCluster[fill[assignments[i]]++] = i;
+
+        // proportional allocation among the clusters that have a silhouette at all
+        long population = 0;
+        for (int c = 0; c < k; c++) if (sizes[c] > 1) population += sizes[c];
+        if (population == 0) return new Result(0.0, Method.SAMPLED, 0, 0.0, 0.0);
+        int[] alloc = new int[k];
+        int allocated = 0;
+        for (int c = 0; c < k; c++) {
+            if (sizes[c] <= 1) continue;
+            alloc[c] = (int) Math.min(sizes[c], Math.max(2, Math.round((double) sampleSize * sizes[c] / population)));
+            allocated += alloc[c];
+        }
+        final int total = allocated;
+
+        // partial Fisher-Yates inside each stratum
+        Random rand = new Random(seed);
+        int[] sample = new int[total];
+        int[] sampleStratum = new int[total];
+        int s = 0;
+        for (int c = 0; c < k; c++) {
+            for (int j = 0; j < alloc[c]; j++) {
+                int pick = offsets[c] + j + rand.nextInt(sizes[c] - j);
+                int tmp = byCluster[offsets[c] + j]; byCluster[offsets[c] + j] = byCluster[pick]; byCluster[pick] = tmp;
+                sample[s] = byCluster[offsets[c] + j];
+                sampleStratum[s++] = c;
+            }
+        }
+
+        double[] values = new double[total];
+        int blocks = (total + SAMPLE_BLOCK - 1) / SAMPLE_BLOCK;
+        int dims = m_data.dims();
+        m_workers.forEach(blocks, monitor, b -> {
+            int from = b * SAMPLE_BLOCK;
+            int to = Math.min(total, from + SAMPLE_BLOCK);
+            double[] points = new double[(to - from) * dims];
+            for (int p = from; p < to; p++) m_data.copyRow(sample[p], points, (p - from) * dims);
+            double[] dists = new double[(to - from) * k];
+            for (int cj = 0; cj < m_data.chunkCount(); cj++) {
+                monitor.checkCanceled();
+                double[] bufJ = m_data.chunk(cj);
+                for (int p = from; p < to; p++) {
+                    accumulateDistances(sample[p], points, (p - from) * dims, assignments, dists, (p - from) * k, cj, bufJ);
+                }
+            }
+            for (int p = from; p < to; p++) values[p] = silhouette(dists, (p - from) * k, sizes, assignments[sample[p]]);
+        });
+
+        // stratified mean and variance with finite population correction
+        double[] mean = new double[k];
+        double[] m2 = new double[k];
+        int[] seen = new int[k];
+        for (int p = 0; p < total; p++) {
+            int c = sampleStratum[p];
+            double delta = values[p] - mean[c];
+            mean[c] += delta / ++seen[c];
+            m2[c] += delta * (values[p] - mean[c]);
+        }
+        double estimate = 0, variance = 0;
+        for (int c = 0; c < k; c++) {
+            if (alloc[c] == 0) continue;
+            double w = sizes[c] / (double) population;
+            estimate += w * mean[c];
+            if (alloc[c] > 1) {
+                double var = m2[c] / (alloc[c] - 1);
+                variance += w * w * (1.0 - (double) alloc[c] / sizes[c]) * var / alloc[c];
+            }
+        }
+        double half = Z_95 * Math.sqrt(variance);
+        return new Result(estimate, Method.SAMPLED, total, estimate - half, estimate + half);
+    }
+
+    private double simplified(final int[] assignments, final double[][] centroids, final Monitor monitor)
+            throws ClusteringCanceledException {
+        int chunks = m_data.chunkCount();
+        int dims = m_data.dims();
+        int k = centroids.length;
+        double[] flat = DistanceKernel.flatten(centroids);
+        double[] chunkSum = new double[chunks];
+        m_workers.forEach(chunks, monitor, ch -> {
+            double[] buf = m_data.chunk(ch);
+            int base = m_data.chunkStart(ch);
+            double[] ranks = new double[k];
+            double sum = 0;
+            for (int r = 0, off = 0; r < m_data.chunkRows(ch); r++, off += dims) {
+                int own = assignments[base + r];
+                m_kernel.ranks(buf, off, flat, k, dims, ranks);
+                double minOther = Double.MAX_VALUE;
+                for (int c = 0; c < k; c++) if (c != own && ranks[c] < minOther) minOther = ranks[c];
+                double a = m_kernel.toDistance(ranks[own]), b = m_kernel.toDistance(minOther);
+                double maxVal = Math.max(a, b);
+                sum += (maxVal > 0) ? (b - a) / maxVal : 0;
+            }
+            chunkSum[ch] = sum;
+        });
+        double sum = 0;
+        for (double c : chunkSum) sum += c;
+        return sum / m_data.rows();
+    }
+}